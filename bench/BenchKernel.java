@@ -0,0 +1,261 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+
+/**
+ * A kernel that measures the cost of the basic thread operations, under
+ * whichever scheduler and TCB handoff the configuration file selects. It
+ * reports:
+ *
+ * <ul>
+ * <li>context switches per second through <tt>KThread.yield()</tt>, between
+ * two threads that do nothing but yield;
+ * <li>context switches per second through <tt>KThread.sleep()</tt> and
+ * <tt>KThread.ready()</tt>, between two threads that ping-pong on a pair of
+ * semaphores;
+ * <li>the latency of forking a thread and joining it, as percentiles;
+ * <li>the heap used by each blocked thread.
+ * </ul>
+ *
+ * <p>
+ * Each timing is repeated <tt>Bench.warmups</tt> times without being
+ * reported, so that the JVM has compiled the code under test, and then
+ * <tt>Bench.iterations</tt> times; throughputs are the median of those runs.
+ */
+public class BenchKernel extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchKernel() {
+	super();
+    }
+
+    /**
+     * Initialize this kernel, and read the benchmark parameters from the
+     * configuration file.
+     */
+    public void initialize(String[] args) {
+	super.initialize(args);
+
+	warmups = Config.getInteger("Bench.warmups", 2);
+	iterations = Config.getInteger("Bench.iterations", 5);
+	numSwitches = Config.getInteger("Bench.switches", 20000);
+	numForks = Config.getInteger("Bench.forks", 1000);
+	numBlocked = Config.getInteger("Bench.blockedThreads", 100);
+
+	Lib.assertTrue(warmups >= 0 && iterations > 0);
+	Lib.assertTrue(numSwitches > 0 && numForks > 0 && numBlocked > 0);
+    }
+
+    /**
+     * The benchmarks replace the usual self tests, which would only add
+     * noise.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run each benchmark and print the results.
+     */
+    public void run() {
+	System.out.println("\nscheduler " + scheduler.getClass().getName() +
+			   ", TCB.handoff " +
+			   Config.getString("TCB.handoff", "monitor"));
+
+	// measure memory first, while no finished threads are still exiting
+	System.out.println("  memory:       " + bytesPerThread() +
+			   " heap bytes per blocked thread");
+
+	double[] rates = new double[iterations];
+
+	for (int i=-warmups; i<iterations; i++) {
+	    double rate = yieldSwitches();
+	    if (i >= 0)
+		rates[i] = rate;
+	}
+	System.out.println("  yield:        " + format(median(rates)) +
+			   " switches/s");
+
+	for (int i=-warmups; i<iterations; i++) {
+	    double rate = sleepSwitches();
+	    if (i >= 0)
+		rates[i] = rate;
+	}
+	System.out.println("  sleep/ready:  " + format(median(rates)) +
+			   " switches/s");
+
+	long[] latencies = new long[numForks*iterations];
+	for (int i=-warmups; i<iterations; i++)
+	    forkJoinLatencies(latencies, Math.max(i, 0) * numForks);
+	Arrays.sort(latencies);
+	System.out.println("  fork+join:    p50 " +
+			   micros(percentile(latencies, 50)) + ", p90 " +
+			   micros(percentile(latencies, 90)) + ", p99 " +
+			   micros(percentile(latencies, 99)) + ", max " +
+			   micros(latencies[latencies.length-1]));
+    }
+
+    /**
+     * Have two threads yield to each other <tt>numSwitches</tt> times in
+     * total.
+     *
+     * @return	the number of context switches per second.
+     */
+    private double yieldSwitches() {
+	Runnable yielder = new Runnable() {
+		public void run() {
+		    for (int i=0; i<numSwitches/2; i++)
+			KThread.yield();
+		}
+	    };
+
+	long start = System.nanoTime();
+	runPair(yielder, yielder);
+	return perSecond(numSwitches, System.nanoTime() - start);
+    }
+
+    /**
+     * Have two threads take turns blocking on a pair of semaphores, for
+     * <tt>numSwitches</tt> switches in total.
+     *
+     * @return	the number of context switches per second.
+     */
+    private double sleepSwitches() {
+	final Semaphore ping = new Semaphore(0);
+	final Semaphore pong = new Semaphore(0);
+
+	Runnable pinger = new Runnable() {
+		public void run() {
+		    for (int i=0; i<numSwitches/2; i++) {
+			ping.V();
+			pong.P();
+		    }
+		}
+	    };
+	Runnable ponger = new Runnable() {
+		public void run() {
+		    for (int i=0; i<numSwitches/2; i++) {
+			ping.P();
+			pong.V();
+		    }
+		}
+	    };
+
+	long start = System.nanoTime();
+	runPair(pinger, ponger);
+	return perSecond(numSwitches, System.nanoTime() - start);
+    }
+
+    /**
+     * Fork and join <tt>numForks</tt> threads that do nothing, one at a time.
+     *
+     * @param	latencies	where to store the time each fork and join
+     *				took, in nanoseconds.
+     * @param	offset		the index in <i>latencies</i> of the first
+     *				result.
+     */
+    private void forkJoinLatencies(long[] latencies, int offset) {
+	Runnable nothing = new Runnable() {
+		public void run() {
+		}
+	    };
+
+	for (int i=0; i<numForks; i++) {
+	    long start = System.nanoTime();
+
+	    KThread thread = new KThread(nothing).setName("fork+join");
+	    thread.fork();
+	    thread.join();
+
+	    latencies[offset+i] = System.nanoTime() - start;
+	}
+    }
+
+    /**
+     * Block <tt>numBlocked</tt> threads on a semaphore and measure how much
+     * the heap grows. The JVM threads' own stacks are not on the heap, and
+     * so are not counted.
+     *
+     * @return	the number of heap bytes used by each blocked thread.
+     */
+    private long bytesPerThread() {
+	final Semaphore gate = new Semaphore(0);
+	Runnable blocker = new Runnable() {
+		public void run() {
+		    gate.P();
+		}
+	    };
+
+	long before = heapUsed();
+
+	KThread[] threads = new KThread[numBlocked];
+	for (int i=0; i<numBlocked; i++) {
+	    threads[i] = new KThread(blocker).setName("blocked");
+	    threads[i].fork();
+	}
+
+	// let every new thread run until it blocks
+	KThread.yield();
+
+	long after = heapUsed();
+
+	for (int i=0; i<numBlocked; i++)
+	    gate.V();
+	for (int i=0; i<numBlocked; i++)
+	    threads[i].join();
+
+	return (after - before) / numBlocked;
+    }
+
+    private void runPair(Runnable first, Runnable second) {
+	KThread a = new KThread(first).setName("bench a");
+	KThread b = new KThread(second).setName("bench b");
+
+	a.fork();
+	b.fork();
+	a.join();
+	b.join();
+    }
+
+    private static long heapUsed() {
+	Runtime runtime = Runtime.getRuntime();
+
+	for (int i=0; i<3; i++)
+	    System.gc();
+
+	return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static double perSecond(int count, long nanos) {
+	return count * 1e9 / Math.max(nanos, 1);
+    }
+
+    private static double median(double[] values) {
+	double[] sorted = values.clone();
+	Arrays.sort(sorted);
+	return sorted[sorted.length/2];
+    }
+
+    /**
+     * Return the value below which the specified percentage of a sorted
+     * array of values fall.
+     */
+    private static long percentile(long[] sorted, int percent) {
+	int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+	return sorted[Math.max(index, 0)];
+    }
+
+    private static String format(double rate) {
+	return Long.toString(Math.round(rate));
+    }
+
+    private static String micros(long nanos) {
+	return (nanos / 1000) + "." + ((nanos / 100) % 10) + "us";
+    }
+
+    private int warmups, iterations;
+    private int numSwitches, numForks, numBlocked;
+}
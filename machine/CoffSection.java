@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -180,7 +179,7 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	byte[] page = new byte[pageSize];
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -197,9 +196,42 @@ public class CoffSection {
 	    initlen = pageSize;
 
 	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    Lib.strictReadFile(file, faddr, page, 0, initlen);
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	Machine.processor().writeMemory(paddr, page, 0, pageSize);
+	Machine.processor().invalidateDecodeCache(ppn);
+    }
+
+    /**
+     * Load consecutive pages from this segment into physical memory, reading
+     * the executable only once.
+     *
+     * @param	spn	the page number within this segment of the first page.
+     * @param	ppns	the physical pages to load into.
+     * @param	offset	the index in <i>ppns</i> of the first physical page.
+     * @param	count	the number of pages to load.
+     */
+    public void loadPages(int spn, int[] ppns, int offset, int count) {
+	Lib.assertTrue(file != null);
+
+	Lib.assertTrue(spn>=0 && count>=0 && spn+count<=numPages);
+
+	int pageSize = Processor.pageSize;
+	byte[] pages = new byte[count*pageSize];
+	int faddr = contentOffset + spn*pageSize;
+	int initlen = initialized ? Math.min(size-spn*pageSize, pages.length) : 0;
+
+	if (initlen > 0)
+	    Lib.strictReadFile(file, faddr, pages, 0, initlen);
+
+	for (int i=0; i<count; i++) {
+	    int ppn = ppns[offset+i];
+	    Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+
+	    Machine.processor().writeMemory(ppn*pageSize, pages, i*pageSize,
+					    pageSize);
+	    Machine.processor().invalidateDecodeCache(ppn);
+	}
     }
 
     /** The COFF object to which this section belongs. */
@@ -4,10 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
-
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
  * hardware provides a method (<tt>setStatus()</tt>) to enable or disable
@@ -53,7 +49,6 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
     }
 
     /**
@@ -102,6 +97,28 @@ public final class Interrupt {
 	return oldStatus;
     }
 
+    /**
+     * Enable interrupts and wait for the next one, as a CPU with nothing to
+     * run does. Simulated time jumps straight to the earliest pending
+     * interrupt, which is then handled, counting the same kernel ticks as
+     * enabling interrupts over and over until it came due would have. If no
+     * interrupt is pending, only one tick passes.
+     *
+     * <p>
+     * Interrupts must be disabled.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	long due = timeUntilDue();
+	long count = 1;
+	if (due != Long.MAX_VALUE)
+	    count = Math.max((due + Stats.KernelTick-1) / Stats.KernelTick, 1);
+
+	enabled = true;
+	tick(true, (int) Math.min(count, Integer.MAX_VALUE));
+    }
+
     /**
      * Tests whether interrupts are enabled.
      *
@@ -124,25 +141,57 @@ public final class Interrupt {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	long id = numPendingInterruptsCreated++;
+
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
+
+	if (numPending == pendingTimes.length)
+	    growPending();
+
+	// sift the new interrupt up from the bottom of the heap
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!earlier(time, id, parent))
+		break;
+
+	    movePending(parent, i);
+	    i = parent;
+	}
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	setPending(i, time, id, type, handler);
 
-	pending.add(toOccur);
+	if (time < nextDue)
+	    nextDue = time;
     }
 
     private void tick(boolean inKernelMode) {
+	tick(inKernelMode, 1);
+    }
+
+    private void tick(boolean inKernelMode, int count) {
 	Stats stats = privilege.stats;
+	long ticks = (inKernelMode ? Stats.KernelTick : Stats.UserTick);
+
+	// every tick but the last must be too early for any pending interrupt
+	Lib.assertTrue(count == 1 ||
+		       (count > 1 && timeUntilDue() > ticks*(count-1)));
 
 	if (inKernelMode) {
-	    stats.kernelTicks += Stats.KernelTick;
-	    stats.totalTicks += Stats.KernelTick;
+	    stats.kernelTicks += ticks*count;
+	    stats.totalTicks += ticks*count;
 	}
 	else {
-	    stats.userTicks += Stats.UserTick;
-	    stats.totalTicks += Stats.UserTick;
+	    stats.userTicks += ticks*count;
+	    stats.totalTicks += ticks*count;
+	}
+
+	// nothing can be due before the earliest pending interrupt
+	if (stats.totalTicks < nextDue && !Lib.test(dbgInt)) {
+	    enabled = true;
+	    return;
 	}
 
 	if (Lib.test(dbgInt))
@@ -153,6 +202,17 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long timeUntilDue() {
+	// tracing prints every tick, so don't let any be skipped
+	if (Lib.test(dbgInt))
+	    return 1;
+	
+	if (nextDue == Long.MAX_VALUE)
+	    return Long.MAX_VALUE;
+
+	return nextDue - privilege.stats.totalTicks;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +221,26 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
+	if (numPending == 0 || pendingTimes[0] > time)
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
-	    return;
-
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && pendingTimes[0] <= time) {
+	    String type = pendingTypes[0];
+	    Runnable handler = pendingHandlers[0];
+	    removeFirstPending();
 
-	    Lib.assertTrue(next.time <= time);
+	    nextDue = (numPending == 0 ? Long.MAX_VALUE : pendingTimes[0]);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,44 +251,103 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	// the heap is only partly ordered, so pick out each in turn
+	boolean[] printed = new boolean[numPending];
+	for (int n=0; n<numPending; n++) {
+	    int first = -1;
+	    for (int i=0; i<numPending; i++) {
+		if (!printed[i] && (first == -1 ||
+				    earlier(pendingTimes[i], pendingIds[i],
+					    first)))
+		    first = i;
+	    }
+
+	    printed[first] = true;
+	    System.out.println("  " + pendingTypes[first] +
+			       ", scheduled at " + pendingTimes[first]);
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
+    /**
+     * Test whether an interrupt at the specified time, with the specified id,
+     * should occur before the pending interrupt in the specified slot of the
+     * heap. Interrupts due at the same time occur in the order they were
+     * scheduled.
+     */
+    private boolean earlier(long time, long id, int slot) {
+	return (time < pendingTimes[slot] ||
+		(time == pendingTimes[slot] && id < pendingIds[slot]));
+    }
+
+    private void setPending(int slot, long time, long id, String type,
+			    Runnable handler) {
+	pendingTimes[slot] = time;
+	pendingIds[slot] = id;
+	pendingTypes[slot] = type;
+	pendingHandlers[slot] = handler;
+    }
+
+    private void movePending(int from, int to) {
+	setPending(to, pendingTimes[from], pendingIds[from],
+		   pendingTypes[from], pendingHandlers[from]);
+    }
+
+    /**
+     * Remove the earliest pending interrupt from the top of the heap.
+     */
+    private void removeFirstPending() {
+	int last = --numPending;
+	long time = pendingTimes[last], id = pendingIds[last];
+	String type = pendingTypes[last];
+	Runnable handler = pendingHandlers[last];
+
+	// don't keep a finished handler reachable
+	pendingTypes[last] = null;
+	pendingHandlers[last] = null;
+
+	if (last == 0)
+	    return;
+
+	// sift the last interrupt down from the top of the heap
+	int i = 0;
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= last)
+		break;
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+	    if (child+1 < last &&
+		earlier(pendingTimes[child+1], pendingIds[child+1], child))
+		child++;
+
+	    if (earlier(time, id, child))
+		break;
+
+	    movePending(child, i);
+	    i = child;
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	setPending(i, time, id, type, handler);
+    }
+
+    private void growPending() {
+	int capacity = pendingTimes.length * 2;
 
-	private long id;
+	long[] times = new long[capacity];
+	long[] ids = new long[capacity];
+	String[] types = new String[capacity];
+	Runnable[] handlers = new Runnable[capacity];
+
+	System.arraycopy(pendingTimes, 0, times, 0, numPending);
+	System.arraycopy(pendingIds, 0, ids, 0, numPending);
+	System.arraycopy(pendingTypes, 0, types, 0, numPending);
+	System.arraycopy(pendingHandlers, 0, handlers, 0, numPending);
+
+	pendingTimes = times;
+	pendingIds = ids;
+	pendingTypes = types;
+	pendingHandlers = handlers;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +355,22 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /**
+     * The pending interrupts, kept as a binary heap ordered by time and then
+     * by id, with each field in its own array so that scheduling an
+     * interrupt allocates nothing.
+     */
+    private long[] pendingTimes = new long[initialPending];
+    private long[] pendingIds = new long[initialPending];
+    private String[] pendingTypes = new String[initialPending];
+    private Runnable[] pendingHandlers = new Runnable[initialPending];
+    /** The number of pending interrupts. */
+    private int numPending = 0;
+    /** The time of the earliest pending interrupt. */
+    private long nextDue = Long.MAX_VALUE;
+
+    private static final int initialPending = 16;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +382,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(boolean inKernelMode, int count) {
+	    Interrupt.this.tick(inKernelMode, count);
+	}
+
+	public long timeUntilDue() {
+	    return Interrupt.this.timeUntilDue();
+	}
     }
 }
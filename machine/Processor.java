@@ -4,6 +4,16 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +28,8 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ * The memory is normally a Java array, but may instead be a direct or
+ * memory-mapped buffer outside the heap; see <tt>getMemoryBuffer()</tt>.
  */
 public final class Processor {
     /**
@@ -45,12 +57,39 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	Lib.assertTrue(numPhysPages > 0 &&
+		       numPhysPages <= Integer.MAX_VALUE / pageSize,
+		       "bad number of physical pages");
+	createMemory(Config.getString("Processor.memory", "heap"));
+	decodeCache = new Decoded[numPhysPages][];
+	pageVersions = new int[numPhysPages];
+
+	String engine = Config.getString("Processor.engine", "interpreter");
+	Lib.assertTrue(engine.equals("interpreter") || engine.equals("block"),
+		       "unknown Processor.engine: " + engine);
+
+	usingBlocks = engine.equals("block");
+	if (usingBlocks) {
+	    blockCache = new Block[numPhysPages][];
+	    blockInst = new Instruction();
+	}
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+	    tlbAssociativity =
+		Config.getInteger("Processor.tlbAssociativity", tlbSize);
+
+	    Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0 &&
+			   tlbSize % tlbAssociativity == 0,
+			   "bad TLB geometry");
+	    numTLBSets = tlbSize / tlbAssociativity;
+	    Lib.assertTrue((numTLBSets & (numTLBSets-1)) == 0,
+			   "number of TLB sets must be a power of two");
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+	    tlbASIDs = new int[tlbSize];
 	}
 	else {
 	    translations = null;
@@ -92,16 +131,92 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	// tracing needs every instruction to go through fetch() and decode()
+	if (usingBlocks && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble))
+	    runBlocks(inst);
 	
 	while (true) {
+	    // no interrupt can occur until the next one is due, so run up to
+	    // that point before advancing the clock
+	    long count = instructionsBeforeInterrupt();
+	    int executed = 0;
+	    
 	    try {
-		inst.run();
+		while (executed < count) {
+		    inst.run();
+		    executed++;
+		}
 	    }
 	    catch (MipsException e) {
+		if (executed > 0)
+		    privilege.interrupt.tick(false, executed);
+
 		e.handle();
+		privilege.interrupt.tick(false);
+		continue;
 	    }
 
-	    privilege.interrupt.tick(false);
+	    privilege.interrupt.tick(false, executed);
+	}
+    }
+
+    /**
+     * Return the number of instructions that can run before the next
+     * interrupt is due. Time advances by one tick per instruction, and the
+     * interrupt is invoked after the last of them.
+     *
+     * @return	the number of instructions until the next interrupt, at
+     *		least one and at most <tt>Integer.MAX_VALUE</tt>.
+     */
+    private long instructionsBeforeInterrupt() {
+	long ticksLeft = privilege.interrupt.timeUntilDue() / Stats.UserTick;
+	
+	return Math.max(1, Math.min(Integer.MAX_VALUE, ticksLeft));
+    }
+
+    /**
+     * Start executing instructions at the current PC, a basic block at a
+     * time. Never returns.
+     *
+     * @param	inst	used to run instructions that cannot start a block.
+     */
+    private void runBlocks(Instruction inst) {
+	while (true) {
+	    int pc = registers[regPC];
+
+	    // a block is fetched sequentially, so a delay slot left over from
+	    // a partly run block is executed on its own
+	    if (registers[regNextPC] != pc+4) {
+		try {
+		    inst.run();
+		}
+		catch (MipsException e) {
+		    e.handle();
+		}
+
+		privilege.interrupt.tick(false);
+		continue;
+	    }
+
+	    int paddr;
+	    try {
+		paddr = translate(pc, 4, false, fetchTranslation);
+	    }
+	    catch (MipsException e) {
+		e.handle();
+		privilege.interrupt.tick(false);
+		continue;
+	    }
+
+	    Block block = blockAt(paddr);
+
+	    // run no more of the block than fits before the next interrupt
+	    int count = (int) Math.min(block.steps.length,
+				       instructionsBeforeInterrupt());
+
+	    block.run(count);
 	}
     }
 
@@ -175,6 +290,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	forgetTranslations();
     }
 
     /**
@@ -188,6 +304,33 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of entries in each set of this processor's TLB. If
+     * this equals <tt>getTLBSize()</tt>, the TLB is fully associative.
+     *
+     * @return	the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbAssociativity;
+    }
+
+    /**
+     * Return the set of TLB entries that can translate the specified virtual
+     * page in the current address space. A translation for <i>vpn</i> is only
+     * found if it is written to one of the <tt>getTLBAssociativity()</tt>
+     * entries starting at the returned number.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the number of the first TLB entry in the set.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return tlbSet(vpn, asid);
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -202,11 +345,40 @@ public final class Processor {
     }
 
     /**
-     * Fill the specified TLB entry.
+     * Copy the specified TLB entry into <i>entry</i>.
+     *
+     * @param	number	the index into the TLB.
+     * @param	entry	where to store the contents of the TLB entry.
+     */
+    public void readTLBEntry(int number, TranslationEntry entry) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(number >= 0 && number < tlbSize);
+
+	copyEntry(translations[number], entry);
+    }
+
+    /**
+     * Return the address space ID that the specified TLB entry is tagged
+     * with.
+     *
+     * @param	number	the index into the TLB.
+     * @return	the address space ID of the TLB entry.
+     */
+    public int getTLBEntryASID(int number) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(number >= 0 && number < tlbSize);
+
+	return tlbASIDs[number];
+    }
+
+    /**
+     * Fill the specified TLB entry, tagging it with the current address space
+     * ID. The entry only translates addresses while that address space ID is
+     * current.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * Within a set, the location of an entry does not affect anything; see
+     * <tt>getTLBSet()</tt>.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -215,7 +387,61 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
-	translations[number] = new TranslationEntry(entry);
+	copyEntry(entry, translations[number]);
+	tlbASIDs[number] = asid;
+	forgetTranslations();
+    }
+
+    /**
+     * Count a page fault that the kernel found. With a TLB, the processor
+     * only sees TLB misses, and it is the kernel that finds which of them
+     * are also page faults.
+     */
+    public void countPageFault() {
+	privilege.stats.numPageFaults++;
+    }
+
+    /**
+     * Return the current address space ID.
+     *
+     * @return	the address space ID that TLB lookups must match.
+     */
+    public int getASID() {
+	Lib.assertTrue(usingTLB);
+
+	return asid;
+    }
+
+    /**
+     * Set the current address space ID. Further TLB lookups only match
+     * entries written while this address space ID was current, so a kernel
+     * that gives each process its own ID need not flush the TLB on a context
+     * switch.
+     *
+     * @param	asid	the new address space ID, between 0 and
+     *			<tt>numASIDs - 1</tt>.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+	this.asid = asid;
+	forgetTranslations();
+    }
+
+    private int tlbSet(int vpn, int asid) {
+	int hash = vpn ^ (asid * 0x9E3779B1);
+	hash ^= hash >>> 16;
+	return (hash & (numTLBSets-1)) * tlbAssociativity;
+    }
+
+    private static void copyEntry(TranslationEntry from, TranslationEntry to) {
+	to.vpn = from.vpn;
+	to.ppn = from.ppn;
+	to.valid = from.valid;
+	to.readOnly = from.readOnly;
+	to.used = from.used;
+	to.dirty = from.dirty;
     }
 
     /**
@@ -230,14 +456,191 @@ public final class Processor {
 
     /**
      * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * is <tt>pageSize * getNumPhysPages()</tt>. Only available if physical
+     * memory is on the heap. Since the caller may write the array, all of
+     * memory is treated as modified.
      *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null,
+		       "physical memory is not an array; use getMemoryBuffer()");
+
+	invalidateMemory(0, mainMemory.length);
 	return mainMemory;
     }
 
+    /**
+     * Return a little-endian view of physical memory, however it is stored.
+     * The view has its own position and limit, so the caller may use the
+     * relative as well as the absolute accessors. A caller that writes
+     * memory through the buffer or its array must then call
+     * <tt>invalidateMemory()</tt>.
+     *
+     * @return	a new buffer sharing the contents of physical memory.
+     */
+    public ByteBuffer getMemoryBuffer() {
+	return memory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Copy bytes out of physical memory.
+     *
+     * @param	paddr	the physical address to copy from.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte of <i>data</i> to write.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	if (mainMemory != null) {
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	}
+	else {
+	    memory.position(paddr);
+	    memory.get(data, offset, length);
+	}
+    }
+
+    /**
+     * Copy bytes into physical memory.
+     *
+     * @param	paddr	the physical address to copy to.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte of <i>data</i> to read.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	if (mainMemory != null) {
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	}
+	else {
+	    memory.position(paddr);
+	    memory.put(data, offset, length);
+	}
+
+	invalidateMemory(paddr, length);
+    }
+
+    /**
+     * Note that physical memory was written other than through
+     * <tt>writeMemory()</tt> or a user store, so that any instructions
+     * translated from it are translated afresh.
+     *
+     * @param	paddr	the first physical address written.
+     * @param	length	the number of bytes written.
+     */
+    public void invalidateMemory(int paddr, int length) {
+	if (length <= 0)
+	    return;
+
+	for (int ppn=paddr/pageSize; ppn<=(paddr+length-1)/pageSize; ppn++)
+	    pageVersions[ppn]++;
+    }
+
+    /**
+     * Allocate physical memory. <i>kind</i> is <tt>heap</tt> for a Java
+     * array, <tt>direct</tt> for a direct buffer, or <tt>mapped</tt> for a
+     * buffer mapped onto the file named by <tt>Processor.memoryFile</tt>,
+     * which then holds the contents of memory after Nachos exits.
+     */
+    private void createMemory(String kind) {
+	final int size = pageSize * numPhysPages;
+
+	if (kind.equals("heap")) {
+	    mainMemory = new byte[size];
+	    memory = ByteBuffer.wrap(mainMemory);
+	}
+	else if (kind.equals("direct")) {
+	    memory = ByteBuffer.allocateDirect(size);
+	}
+	else if (kind.equals("mapped")) {
+	    final String name =
+		Config.getString("Processor.memoryFile", "nachos.mem");
+
+	    try {
+		memory = privilege.doPrivileged(
+		    new PrivilegedExceptionAction<MappedByteBuffer>() {
+			public MappedByteBuffer run() throws IOException {
+			    RandomAccessFile file =
+				new RandomAccessFile(name, "rw");
+			    try {
+				file.setLength(0);
+				file.setLength(size);
+				return file.getChannel().map(
+				    FileChannel.MapMode.READ_WRITE, 0, size);
+			    }
+			    finally {
+				file.close();
+			    }
+			}
+		    });
+	    }
+	    catch (PrivilegedActionException e) {
+		Lib.assertNotReached("could not map " + name + ": " +
+				     e.getException());
+	    }
+	}
+	else {
+	    Lib.assertNotReached("unknown Processor.memory: " + kind);
+	}
+
+	memory.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Read <i>size</i> (1, 2, or 4) bytes of physical memory, sign extending
+     * them as <tt>Lib.bytesToInt()</tt> does. An array is read directly, which
+     * is faster than through a heap buffer.
+     */
+    private int loadPhys(int paddr, int size) {
+	if (mainMemory != null)
+	    return Lib.bytesToInt(mainMemory, paddr, size);
+
+	switch (size) {
+	case 1:
+	    return memory.get(paddr);
+	case 2:
+	    return memory.getShort(paddr);
+	default:
+	    return memory.getInt(paddr);
+	}
+    }
+
+    /**
+     * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i> to
+     * physical memory.
+     */
+    private void storePhys(int paddr, int size, int value) {
+	pageVersions[paddr / pageSize]++;
+
+	if (mainMemory != null) {
+	    Lib.bytesFromInt(mainMemory, paddr, size, value);
+	    return;
+	}
+
+	switch (size) {
+	case 1:
+	    memory.put(paddr, (byte) value);
+	    break;
+	case 2:
+	    memory.putShort(paddr, (short) value);
+	    break;
+	default:
+	    memory.putInt(paddr, value);
+	    break;
+	}
+    }
+
+    /**
+     * Read the word of physical memory at <i>paddr</i>.
+     */
+    private int loadWord(int paddr) {
+	if (mainMemory != null)
+	    return Lib.bytesToInt(mainMemory, paddr);
+
+	return memory.getInt(paddr);
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -275,6 +678,67 @@ public final class Processor {
 	return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
     }
 
+    /**
+     * Discard the predecoded instructions cached for the specified physical
+     * page. Called when the contents of the page are replaced wholesale, as
+     * in <tt>CoffSection.loadPage()</tt>.
+     *
+     * @param	ppn	the physical page whose decodings to discard.
+     */
+    void invalidateDecodeCache(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodeCache[ppn] = null;
+	pageVersions[ppn]++;
+    }
+
+    /**
+     * Return the decoding of the instruction word at the specified physical
+     * address, decoding it only if it is not already in the decode cache.
+     *
+     * <p>
+     * A cached decoding is only used if its word still matches
+     * <i>value</i>, so instructions modified by user stores or by the kernel
+     * writing <tt>getMemory()</tt> directly are always decoded afresh.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @param	value	the instruction word at <i>paddr</i>.
+     * @return	the decoded instruction.
+     */
+    private Decoded decodeAt(int paddr, int value) {
+	Decoded[] page = decodeCache[paddr / pageSize];
+	if (page == null)
+	    page = decodeCache[paddr / pageSize] = new Decoded[pageSize / 4];
+
+	int index = (paddr % pageSize) / 4;
+	Decoded decoded = page[index];
+	if (decoded == null || decoded.value != value)
+	    page[index] = decoded = new Decoded(value);
+
+	return decoded;
+    }
+
+    /**
+     * Return the basic block starting at the specified physical address,
+     * translating it if it is not in the block cache or if its page has
+     * been written since it was translated.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the block starting at <i>paddr</i>.
+     */
+    private Block blockAt(int paddr) {
+	Block[] page = blockCache[paddr / pageSize];
+	if (page == null)
+	    page = blockCache[paddr / pageSize] = new Block[pageSize / 4];
+
+	int index = (paddr % pageSize) / 4;
+	Block block = page[index];
+	if (block == null || block.version != pageVersions[paddr / pageSize])
+	    page[index] = block = new Block(paddr);
+
+	return block;
+    }
+
     private void finishLoad() {
 	delayedLoad(0, 0, 0);
     }
@@ -286,17 +750,33 @@ public final class Processor {
      * resulting physical page is valid, and then return the resulting physical
      * address.
      *
+     * <p>
+     * If the access is to the same page as the last one through
+     * <i>last</i>, and the entry that translated that page is unchanged, the
+     * checks are skipped.
+     *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	last	the last translation of this kind of access.
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    private int translate(int vaddr, int size, boolean writing,
+			  LastTranslation last)
 	throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
+	else if ((vaddr & (size-1)) == 0 &&
+		 pageFromAddress(vaddr) == last.vpn &&
+		 last.stillValid(writing)) {
+	    last.entry.used = true;
+	    if (writing)
+		last.entry.dirty = true;
+
+	    return last.base + offsetFromAddress(vaddr);
+	}
 
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
@@ -322,11 +802,14 @@ public final class Processor {
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB set for a matching vpn and ASID
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
+	    int set = tlbSet(vpn, asid);
+	    for (int i=set; i<set+tlbAssociativity; i++) {
+		TranslationEntry candidate = translations[i];
+		if (candidate.valid && candidate.vpn == vpn &&
+		    tlbASIDs[i] == asid) {
+		    entry = candidate;
 		    break;
 		}
 	    }
@@ -357,11 +840,51 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
+	last.vpn = vpn;
+	last.entry = entry;
+	last.ppn = ppn;
+	last.base = ppn*pageSize;
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
 
+    /**
+     * Forget the last translations, because the page table or TLB they came
+     * from has been replaced or rewritten.
+     */
+    private void forgetTranslations() {
+	fetchTranslation.vpn = -1;
+	dataTranslation.vpn = -1;
+    }
+
+    /**
+     * The page last accessed by one kind of memory reference, and the entry
+     * that translated it.
+     */
+    private class LastTranslation {
+	/**
+	 * Test whether the remembered entry still translates <tt>vpn</tt> to
+	 * <tt>ppn</tt>, and allows the access. The kernel may have changed the
+	 * entry, or replaced it in the page table, since it was used.
+	 */
+	boolean stillValid(boolean writing) {
+	    if (!usingTLB && translations[vpn] != entry)
+		return false;
+
+	    return entry.valid && entry.ppn == ppn &&
+		!(writing && entry.readOnly);
+	}
+
+	/** The virtual page number, or -1 if nothing is remembered. */
+	int vpn = -1;
+	TranslationEntry entry;
+	int ppn;
+	/** The physical address of the start of the page. */
+	int base;
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -378,8 +901,8 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = loadPhys(translate(vaddr, size, false, dataTranslation),
+			     size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -406,8 +929,13 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true, dataTranslation);
+
+	// a block must not run on into code that it has just overwritten
+	if (paddr / pageSize == blockPage)
+	    blockWritten = true;
+
+	storePhys(paddr, size, value);
     }
 
     /**
@@ -541,6 +1069,17 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of entries in each TLB set. */
+    private int tlbAssociativity;
+    /** Number of TLB sets; a power of two. */
+    private int numTLBSets;
+    /** The address space ID each TLB entry was written under. */
+    private int[] tlbASIDs;
+    /** The current address space ID. */
+    private int asid = 0;
+
+    /** Number of address space IDs. */
+    public static final int numASIDs = 256;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -553,8 +1092,40 @@ public final class Processor {
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
-    private byte[] mainMemory;
+    /** Main memory for user programs, if it is on the heap. */
+    private byte[] mainMemory = null;
+    /** Main memory for user programs, as a little-endian buffer. */
+    private ByteBuffer memory;
+    /**
+     * Predecoded instructions, indexed by physical page and then by word
+     * within the page. A page's array is allocated the first time an
+     * instruction is fetched from it.
+     */
+    private Decoded[][] decodeCache;
+    /**
+     * The number of times each physical page has been written, so that a
+     * cached block can tell whether its page changed with one comparison.
+     */
+    private int[] pageVersions;
+
+    /** <tt>true</tt> if running user programs a basic block at a time. */
+    private boolean usingBlocks;
+    /**
+     * Translated basic blocks, indexed by physical page and then by the word
+     * within the page at which the block starts.
+     */
+    private Block[][] blockCache;
+    /** Used by blocks to run the instructions they do not translate. */
+    private Instruction blockInst;
+    /** The physical page of the block being run, or -1 if none. */
+    private int blockPage = -1;
+    /** Set when a store writes to <tt>blockPage</tt>. */
+    private boolean blockWritten;
+
+    /** The last translation of an instruction fetch. */
+    private LastTranslation fetchTranslation = new LastTranslation();
+    /** The last translation of a load or store. */
+    private LastTranslation dataTranslation = new LastTranslation();
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -617,7 +1188,7 @@ public final class Processor {
 	}	
 
 	private boolean test(int flag) {
-	    return Lib.test(flag, flags);
+	    return Lib.test(flag, decoded.flags);
 	}
 
 	private void fetch() throws MipsException {
@@ -626,92 +1197,54 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
-	}
-	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	    int paddr = translate(registers[regPC], 4, false,
+				  fetchTranslation);
+	    value = loadWord(paddr);
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 
+	    decoded = decodeAt(paddr, value);
+	}
+	
+	private void decode() {
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
-	    if (format == Mips.RFMT)
-		jtarget = registers[rs];
-	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
-	    else if (format == Mips.JFMT)
-		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+	    if (decoded.format == Mips.RFMT)
+		jtarget = registers[decoded.rs];
+	    else if (decoded.format == Mips.IFMT)
+		jtarget = registers[regNextPC] + (decoded.imm<<2);
+	    else if (decoded.format == Mips.JFMT)
+		jtarget = (registers[regNextPC]&0xF0000000) |
+		    (decoded.target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
-	    addr = registers[rs] + imm;
+	    addr = registers[decoded.rs] + decoded.imm;
 
 	    // get src1
 	    if (test(Mips.SRC1SH))
-		src1 = sh;
+		src1 = decoded.sh;
 	    else
-		src1 = registers[rs];
+		src1 = registers[decoded.rs];
 
 	    // get src2
 	    if (test(Mips.SRC2IMM))
-		src2 = imm;
+		src2 = decoded.imm;
 	    else
-		src2 = registers[rt];
+		src2 = registers[decoded.rt];
 
 	    if (test(Mips.UNSIGNED)) {
 		src1 &= 0xFFFFFFFFL;
@@ -723,12 +1256,17 @@ public final class Processor {
 	}
 
 	private void print() {
+	    int op = decoded.op, rs = decoded.rs, rt = decoded.rt;
+	    int rd = decoded.rd, sh = decoded.sh, func = decoded.func;
+	    int imm = decoded.imm;
+	    String name = decoded.name;
+
 	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
 		!Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 	    
-	    if (operation == Mips.INVALID) {
+	    if (decoded.operation == Mips.INVALID) {
 		System.out.print("invalid: op=" + Lib.toHexString(op, 2) +
 				 " rs=" + Lib.toHexString(rs, 2) +
 				 " rt=" + Lib.toHexString(rt, 2) +
@@ -849,7 +1387,7 @@ public final class Processor {
 	    int value;
 	    int preserved;
 	    
-	    switch (operation) {
+	    switch (decoded.operation) {
 	    case Mips.ADD:
 		dst = src1 + src2;
 		break;
@@ -900,7 +1438,7 @@ public final class Processor {
 		dst = src1 ^ src2;
 		break;
 	    case Mips.LUI:
-		dst = imm << 16;
+		dst = decoded.imm << 16;
 		break;
 
 	    case Mips.BEQ:
@@ -942,10 +1480,10 @@ public final class Processor {
 		throw new MipsException(exceptionSyscall);
 
 	    case Mips.LOAD:
-		value = readMem(addr, size);
+		value = readMem(addr, decoded.size);
 		
 		if (!test(Mips.UNSIGNED))
-		    dst = Lib.extend(value, 0, size*8);
+		    dst = Lib.extend(value, 0, decoded.size*8);
 		else
 		    dst = value;
 		
@@ -974,7 +1512,7 @@ public final class Processor {
 		break;
 
 	    case Mips.STORE:
-		writeMem(addr, size, (int) src2);
+		writeMem(addr, decoded.size, (int) src2);
 		break;
 
 	    case Mips.SWL:
@@ -1022,17 +1560,18 @@ public final class Processor {
 		throw new MipsException(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
-		delayedLoad(dstReg, (int) dst, mask);
+		delayedLoad(decoded.dstReg, (int) dst, mask);
 	    else
 		finishLoad();
 
 	    if (test(Mips.LINK))
 		dst = nextPC;
 
-	    if (test(Mips.DST) && dstReg != 0)
-		registers[dstReg] = (int) dst;
+	    if (test(Mips.DST) && decoded.dstReg != 0)
+		registers[decoded.dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) &&
+		decoded.dstReg != 0) {
 		if (Lib.test(dbgFullDisassemble)) {
 		    System.out.print("#0x" + Lib.toHexString((int) dst));
 		    if (test(Mips.DELAYEDLOAD))
@@ -1052,17 +1591,575 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
-	int operation, format, flags;
-	String name;
+	Decoded decoded;
+	int value;
 
-	int size;
-	int addr, nextPC, jtarget, dstReg;
+	int addr, nextPC, jtarget;
 	long src1, src2, dst;
 	int mask;	
 	boolean branch;
     }
 
+    /**
+     * The parts of an instruction that depend only on the instruction word
+     * itself, and not on the contents of any register. These are computed
+     * once per word and kept in the decode cache, so that
+     * <tt>Instruction.decode()</tt> only has to read the source registers.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm; no unsigned instruction is a branch, so jtarget can
+	    // safely be computed from the zero-extended value
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = Lib.extract(value, 0, 16);
+	    else
+		imm = Lib.extend(value, 0, 16);
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg;
+    }
+
+    /**
+     * A basic block: a run of instructions fetched sequentially from a
+     * single physical page, ending with the first branch or jump (and its
+     * delay slot), syscall, or invalid instruction. Each instruction is
+     * translated once into a <tt>Step</tt> that performs only that
+     * instruction, and the whole block is charged to the clock in one tick.
+     */
+    private class Block {
+	Block(int paddr) {
+	    this.paddr = paddr;
+	    this.version = pageVersions[paddr / pageSize];
+
+	    int end = (paddr/pageSize + 1) * pageSize;
+	    ArrayList<Decoded> list = new ArrayList<Decoded>();
+
+	    for (int addr=paddr; addr<end; addr+=4) {
+		Decoded decoded =
+		    decodeAt(addr, loadWord(addr));
+		list.add(decoded);
+
+		if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		    if (addr+4 < end)
+			list.add(decodeAt(addr+4,
+					  loadWord(addr+4)));
+		    break;
+		}
+
+		if (decoded.operation == Mips.SYSCALL ||
+		    decoded.operation == Mips.UNIMPL ||
+		    decoded.operation == Mips.INVALID)
+		    break;
+	    }
+
+	    steps = new Step[list.size()];
+
+	    for (int i=0; i<steps.length; i++)
+		steps[i] = newStep(list.get(i));
+	}
+
+	/**
+	 * Run the first <i>count</i> instructions of this block. No interrupt
+	 * may be due before the last of them, so the clock only has to be
+	 * checked once, when the block is done.
+	 */
+	void run(int count) {
+	    int executed = 0;
+
+	    blockPage = paddr / pageSize;
+	    blockWritten = false;
+
+	    try {
+		while (executed < count) {
+		    steps[executed].run();
+		    executed++;
+
+		    if (blockWritten)
+			break;
+		}
+	    }
+	    catch (MipsException e) {
+		blockPage = -1;
+
+		if (executed > 0)
+		    privilege.interrupt.tick(false, executed);
+
+		e.handle();
+		privilege.interrupt.tick(false);
+		return;
+	    }
+
+	    blockPage = -1;
+
+	    privilege.interrupt.tick(false, executed);
+	}
+
+	private Step newStep(Decoded d) {
+	    boolean toZero = (d.dstReg == 0);
+	    
+	    switch (d.operation) {
+	    case Mips.ADD:
+		if (Lib.test(Mips.OVERFLOW, d.flags))
+		    break;
+		if (toZero)
+		    return new Nop();
+		if (Lib.test(Mips.SRC2IMM, d.flags))
+		    return new AddImm(d);
+		return new Add(d);
+	    case Mips.SUB:
+		if (Lib.test(Mips.OVERFLOW, d.flags))
+		    break;
+		if (toZero)
+		    return new Nop();
+		return new Sub(d);
+	    case Mips.SLL:
+		if (!Lib.test(Mips.SRC1SH, d.flags))
+		    break;
+		if (toZero)
+		    return new Nop();
+		return new ShiftLeft(d);
+	    case Mips.SLT:
+		if (toZero)
+		    return new Nop();
+		if (!Lib.test(Mips.SRC2IMM, d.flags))
+		    return new SetLess(d);
+		if (Lib.test(Mips.UNSIGNED, d.flags))
+		    break;
+		return new SetLessImm(d);
+	    case Mips.AND:
+		if (toZero)
+		    return new Nop();
+		if (Lib.test(Mips.SRC2IMM, d.flags))
+		    return new AndImm(d);
+		return new And(d);
+	    case Mips.OR:
+		if (toZero)
+		    return new Nop();
+		if (Lib.test(Mips.SRC2IMM, d.flags))
+		    return new OrImm(d);
+		return new Or(d);
+	    case Mips.LUI:
+		if (toZero)
+		    return new Nop();
+		return new LoadUpper(d);
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BLEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLTZ:
+	    case Mips.BGEZ:
+		if (Lib.test(Mips.LINK, d.flags))
+		    break;
+		return new Branch(d);
+	    case Mips.JUMP:
+		if (d.format == Mips.JFMT)
+		    return new Jump(d);
+		if (!Lib.test(Mips.LINK, d.flags))
+		    return new JumpRegister(d);
+		break;
+	    case Mips.LOAD:
+		return new Load(d);
+	    case Mips.STORE:
+		return new Store(d);
+	    }
+
+	    return new Interpreted(d);
+	}
+
+	private int paddr;
+	int version;
+	Step[] steps;
+    }
+
+    /**
+     * A single translated instruction. Like <tt>Instruction</tt>, a step
+     * reads all its source registers before completing the previous delayed
+     * load, and changes nothing if it throws an exception.
+     */
+    private abstract class Step {
+	abstract void run() throws MipsException;
+    }
+
+    private class Interpreted extends Step {
+	Interpreted(Decoded decoded) {
+	    this.decoded = decoded;
+	}
+
+	void run() throws MipsException {
+	    blockInst.decoded = decoded;
+	    blockInst.value = decoded.value;
+	    blockInst.decode();
+	    blockInst.execute();
+	    blockInst.writeBack();
+	}
+
+	private Decoded decoded;
+    }
+
+    private class Nop extends Step {
+	void run() {
+	    finishLoad();
+	    advancePC(registers[regNextPC]+4);
+	}
+    }
+
+    private class AddImm extends Step {
+	AddImm(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    imm = d.imm;
+	}
+
+	void run() {
+	    int result = registers[rs] + imm;
+	    finishLoad();
+	    registers[rt] = result;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, rt, imm;
+    }
+
+    private class Add extends Step {
+	Add(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    rd = d.rd;
+	}
+
+	void run() {
+	    int result = registers[rs] + registers[rt];
+	    finishLoad();
+	    registers[rd] = result;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, rt, rd;
+    }
+
+    private class Sub extends Step {
+	Sub(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    rd = d.rd;
+	}
+
+	void run() {
+	    int result = registers[rs] - registers[rt];
+	    finishLoad();
+	    registers[rd] = result;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, rt, rd;
+    }
+
+    private class ShiftLeft extends Step {
+	ShiftLeft(Decoded d) {
+	    rt = d.rt;
+	    rd = d.rd;
+	    sh = d.sh;
+	}
+
+	void run() {
+	    int result = registers[rt] << sh;
+	    finishLoad();
+	    registers[rd] = result;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rt, rd, sh;
+    }
+
+    private class SetLess extends Step {
+	SetLess(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    rd = d.rd;
+	    unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+	}
+
+	void run() {
+	    int src1 = registers[rs], src2 = registers[rt];
+	    if (unsigned) {
+		src1 ^= 0x80000000;
+		src2 ^= 0x80000000;
+	    }
+	    
+	    finishLoad();
+	    registers[rd] = (src1 < src2) ? 1 : 0;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, rt, rd;
+	private boolean unsigned;
+    }
+
+    private class SetLessImm extends Step {
+	SetLessImm(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    imm = d.imm;
+	}
+
+	void run() {
+	    int result = (registers[rs] < imm) ? 1 : 0;
+	    finishLoad();
+	    registers[rt] = result;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, rt, imm;
+    }
+
+    private class AndImm extends Step {
+	AndImm(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    imm = d.imm;
+	}
+
+	void run() {
+	    int result = registers[rs] & imm;
+	    finishLoad();
+	    registers[rt] = result;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, rt, imm;
+    }
+
+    private class And extends Step {
+	And(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    rd = d.rd;
+	}
+
+	void run() {
+	    int result = registers[rs] & registers[rt];
+	    finishLoad();
+	    registers[rd] = result;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, rt, rd;
+    }
+
+    private class OrImm extends Step {
+	OrImm(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    imm = d.imm;
+	}
+
+	void run() {
+	    int result = registers[rs] | imm;
+	    finishLoad();
+	    registers[rt] = result;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, rt, imm;
+    }
+
+    private class Or extends Step {
+	Or(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    rd = d.rd;
+	}
+
+	void run() {
+	    int result = registers[rs] | registers[rt];
+	    finishLoad();
+	    registers[rd] = result;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, rt, rd;
+    }
+
+    private class LoadUpper extends Step {
+	LoadUpper(Decoded d) {
+	    rt = d.rt;
+	    value = d.imm << 16;
+	}
+
+	void run() {
+	    finishLoad();
+	    registers[rt] = value;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rt, value;
+    }
+
+    private class Branch extends Step {
+	Branch(Decoded d) {
+	    operation = d.operation;
+	    rs = d.rs;
+	    rt = d.rt;
+	    offset = d.imm << 2;
+	}
+
+	void run() {
+	    int src1 = registers[rs], src2 = registers[rt];
+	    boolean taken;
+
+	    switch (operation) {
+	    case Mips.BEQ:
+		taken = (src1 == src2);
+		break;
+	    case Mips.BNE:
+		taken = (src1 != src2);
+		break;
+	    case Mips.BLEZ:
+		taken = (src1 <= 0);
+		break;
+	    case Mips.BGTZ:
+		taken = (src1 > 0);
+		break;
+	    case Mips.BLTZ:
+		taken = (src1 < 0);
+		break;
+	    default:
+		taken = (src1 >= 0);
+		break;
+	    }
+
+	    finishLoad();
+	    advancePC(taken ? registers[regNextPC] + offset
+		      : registers[regNextPC]+4);
+	}
+
+	private int operation, rs, rt, offset;
+    }
+
+    private class Jump extends Step {
+	Jump(Decoded d) {
+	    target = d.target << 2;
+	    link = Lib.test(Mips.LINK, d.flags);
+	}
+
+	void run() {
+	    int nextPC = registers[regNextPC];
+	    finishLoad();
+	    if (link)
+		registers[regRA] = nextPC+4;
+	    advancePC((nextPC&0xF0000000) | target);
+	}
+
+	private int target;
+	private boolean link;
+    }
+
+    private class JumpRegister extends Step {
+	JumpRegister(Decoded d) {
+	    rs = d.rs;
+	}
+
+	void run() {
+	    int target = registers[rs];
+	    finishLoad();
+	    advancePC(target);
+	}
+
+	private int rs;
+    }
+
+    private class Load extends Step {
+	Load(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    imm = d.imm;
+	    size = d.size;
+	    signed = !Lib.test(Mips.UNSIGNED, d.flags);
+	}
+
+	void run() throws MipsException {
+	    int paddr = translate(registers[rs]+imm, size, false,
+				  dataTranslation);
+	    int value = loadPhys(paddr, size);
+	    if (signed)
+		value = Lib.extend(value, 0, size*8);
+
+	    delayedLoad(rt, value, 0xFFFFFFFF);
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, rt, imm, size;
+	private boolean signed;
+    }
+
+    private class Store extends Step {
+	Store(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    imm = d.imm;
+	    size = d.size;
+	}
+
+	void run() throws MipsException {
+	    writeMem(registers[rs]+imm, size, registers[rt]);
+	    finishLoad();
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, rt, imm, size;
+    }
+
     private static class Mips {
 	Mips() {
 	}
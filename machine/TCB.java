@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +15,13 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * Control is handed from one TCB to the next either through the monitor
+ * bound to each TCB (the default), or, if <tt>TCB.handoff</tt> is
+ * <tt>park</tt> in the configuration file, by parking and unparking the JVM
+ * threads directly, which avoids contending for a lock on every context
+ * switch.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +48,14 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	String handoff = Config.getString("TCB.handoff", "monitor");
+	Lib.assertTrue(handoff.equals("monitor") || handoff.equals("park"),
+		       "unknown TCB.handoff: " + handoff);
+	usingPark = handoff.equals("park");
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	Lib.assertTrue(threadLimit > 0);
     }
     
     /**
@@ -66,7 +82,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -287,10 +303,19 @@ public final class TCB {
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	if (usingPark) {
+	    // an unpark() that arrives first just makes park() return at once
+	    while (!running)
+		LockSupport.park(this);
+	    return;
+	}
+	
+	synchronized (this) {
+	    while (!running) {
+		try { wait(); }
+		catch (InterruptedException e) { }
+	    }
 	}
     }
 
@@ -300,9 +325,17 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	if (usingPark) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	    return;
+	}
+	
+	synchronized (this) {
+	    running = true;
+	    notify();
+	}
     }
 
     private void associateThread(KThread thread) {
@@ -332,6 +365,19 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The limit actually enforced on the number of started, non-destroyed
+     * TCB's, set by <tt>TCB.maxThreads</tt> in the configuration file.
+     * Defaults to <tt>maxThreads</tt>.
+     */
+    private static int threadLimit = maxThreads;
+
+    /**
+     * <tt>true</tt> if TCB's hand off control by parking and unparking their
+     * JVM threads, rather than through their monitors.
+     */
+    private static boolean usingPark = false;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -386,9 +432,10 @@ public final class TCB {
      * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
+     * of the current TCB. It is volatile because, when parking, it is read and
+     * written without holding any lock.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
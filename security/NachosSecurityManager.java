@@ -63,7 +63,7 @@ public class NachosSecurityManager extends SecurityManager {
 	    return NachosSecurityManager.this.doPrivileged(action);
 	}
 
-	public Object doPrivileged(PrivilegedExceptionAction action)
+	public <T> T doPrivileged(PrivilegedExceptionAction<T> action)
 	    throws PrivilegedActionException {
 	    return NachosSecurityManager.this.doPrivileged(action);
 	}
@@ -141,9 +141,9 @@ public class NachosSecurityManager extends SecurityManager {
 	return result;
     }
 
-    private Object doPrivileged(PrivilegedExceptionAction action)
+    private <T> T doPrivileged(PrivilegedExceptionAction<T> action)
 	throws PrivilegedActionException {
-	Object result = null;
+	T result = null;
 	enablePrivilege();
 	try {
 	    result = action.run();
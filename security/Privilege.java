@@ -71,7 +71,7 @@ public abstract class Privilege {
      * @param	action	the action to perform.
      * @return	the return value of the action.
      */
-    public abstract Object doPrivileged(PrivilegedExceptionAction action)
+    public abstract <T> T doPrivileged(PrivilegedExceptionAction<T> action)
 	throws PrivilegedActionException;
 
     /**
@@ -158,6 +158,28 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by several ticks at once. This has the
+	 * same effect as <i>count</i> calls to <tt>tick(inKernelMode)</tt>,
+	 * but may only be used if no pending interrupt is due before the last
+	 * of those ticks.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param count	the number of ticks to advance.
+	 */
+	public void tick(boolean inKernelMode, int count);
+
+	/**
+	 * Return the amount of simulated time left before the earliest pending
+	 * interrupt is due.
+	 *
+	 * @return	the number of ticks until the next interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+	 */
+	public long timeUntilDue();
     }
 
     /**
@@ -0,0 +1,78 @@
+/* fork.c
+ *    Test program for fork().
+ *
+ *    Parent and child share their memory copy-on-write after the fork, and
+ *    each writes to it: the child to a global array and a local variable,
+ *    the parent to the last word of the array. Neither may see the other's
+ *    writes. The parent then joins the child for its exit status.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* spans several pages */
+#define NUMWORDS	2048
+
+int data[NUMWORDS];
+
+int
+main()
+{
+  int i, pid, status, local = 1;
+
+  for (i=0; i<NUMWORDS; i++)
+    data[i] = i;
+
+  pid = fork();
+  if (pid == -1) {
+    printf("fork: fork failed\n");
+    return 1;
+  }
+
+  if (pid == 0) {
+    /* the parent's write must not show up here */
+    for (i=0; i<NUMWORDS; i++) {
+      if (data[i] != i)
+	exit(2);
+    }
+
+    for (i=0; i<NUMWORDS; i++)
+      data[i] = -i;
+    local = 2;
+
+    for (i=0; i<NUMWORDS; i++) {
+      if (data[i] != -i)
+	exit(3);
+    }
+
+    exit(local == 2 ? 42 : 4);
+  }
+
+  data[NUMWORDS-1] = 0;
+
+  if (join(pid, &status) != 1 || status != 42) {
+    printf("fork: child failed with status %d\n", status);
+    return 1;
+  }
+
+  /* the child's writes must not show up here */
+  for (i=0; i<NUMWORDS-1; i++) {
+    if (data[i] != i) {
+      printf("fork: parent sees the child's write at %d\n", i);
+      return 1;
+    }
+  }
+  if (data[NUMWORDS-1] != 0 || local != 1) {
+    printf("fork: parent lost its own writes\n");
+    return 1;
+  }
+
+  if (join(pid, &status) != -1) {
+    printf("fork: child joined twice\n");
+    return 1;
+  }
+
+  printf("fork: ok\n");
+  return 0;
+}
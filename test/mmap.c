@@ -0,0 +1,112 @@
+/* mmap.c
+ *    Test program for mmap() and munmap().
+ *
+ *    Maps a file of FILESIZE bytes and checks that bad maps are refused,
+ *    that read() and write() are refused while the file is mapped, that
+ *    the map shows the contents of the file, and that writes through the
+ *    map reach the file both when it is removed with munmap() and when the
+ *    process exits with the map still in place. Run with fewer physical
+ *    pages than the file has, and dirty pages are also written back as
+ *    they are evicted.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define FILESIZE	40000
+#define FILENAME	"mmap.dat"
+
+/* well above the program, its stack and its arguments */
+#define MAPADDR		((char *) 0x100000)
+
+#define PATTERN(i,n)	((char) ((i)*(n) + (i)/256))
+
+char buf[FILESIZE];
+
+void check(char *what, int ok)
+{
+  if (!ok) {
+    printf("mmap: %s failed\n", what);
+    exit(1);
+  }
+}
+
+/* check that the file holds pattern n */
+void checkfile(char *what, int n)
+{
+  int fd, i;
+
+  fd = open(FILENAME);
+  check("open", fd != -1);
+  check(what, read(fd, buf, FILESIZE) == FILESIZE);
+  for (i=0; i<FILESIZE; i++)
+    check(what, buf[i] == PATTERN(i, n));
+  close(fd);
+}
+
+int main(int argc, char** argv)
+{
+  int fd, fd2, i, pid, status;
+  char *args[2];
+
+  /* run by the test below: write through a map and exit without
+   * removing it */
+  if (argc == 2 && strcmp(argv[1], "exit") == 0) {
+    fd = open(FILENAME);
+    check("map before exit", mmap(fd, MAPADDR) == FILESIZE);
+    for (i=0; i<FILESIZE; i++)
+      MAPADDR[i] = PATTERN(i, 5);
+    exit(0);
+  }
+
+  for (i=0; i<FILESIZE; i++)
+    buf[i] = PATTERN(i, 1);
+  fd = creat(FILENAME);
+  check("creat", fd != -1);
+  check("write", write(fd, buf, FILESIZE) == FILESIZE);
+  close(fd);
+
+  fd = open(FILENAME);
+  check("open", fd != -1);
+
+  check("bad descriptor", mmap(-1, MAPADDR) == -1);
+  check("unaligned address", mmap(fd, MAPADDR+1) == -1);
+  check("map over the program", mmap(fd, (char *) 0) == -1);
+
+  check("mmap", mmap(fd, MAPADDR) == FILESIZE);
+  check("double map", mmap(fd, MAPADDR + 0x20000) == -1);
+
+  fd2 = open(FILENAME);
+  check("open", fd2 != -1);
+  check("overlapping map", mmap(fd2, MAPADDR + 0x4000) == -1);
+  close(fd2);
+
+  check("read while mapped", read(fd, buf, 1) == -1);
+  check("write while mapped", write(fd, buf, 1) == -1);
+
+  for (i=0; i<FILESIZE; i++)
+    check("read through map", MAPADDR[i] == PATTERN(i, 1));
+
+  for (i=0; i<FILESIZE; i++)
+    MAPADDR[i] = PATTERN(i, 3);
+  check("munmap", munmap(MAPADDR) == 0);
+  check("second munmap", munmap(MAPADDR) == -1);
+
+  /* the descriptor is usable again, still at the start of the file */
+  check("read after munmap", read(fd, buf, FILESIZE) == FILESIZE);
+  for (i=0; i<FILESIZE; i++)
+    check("write back on munmap", buf[i] == PATTERN(i, 3));
+  close(fd);
+
+  args[0] = "mmap.coff";
+  args[1] = "exit";
+  pid = exec("mmap.coff", 2, args);
+  check("exec", pid != -1);
+  check("join", join(pid, &status) == 1 && status == 0);
+  checkfile("write back on exit", 5);
+
+  unlink(FILENAME);
+  printf("mmap: ok\n");
+  return 0;
+}
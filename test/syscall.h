@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallMunmap		14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -224,6 +226,11 @@ int unlink(char *name);
  * When the file descriptor is closed, all remaining dirty pages of the map
  * will be flushed to disk and the map will be removed.
  *
+ * address must be page-aligned, and the map must lie above the program's
+ * stack and argument pages without overlapping another map. Pages are read
+ * from the file when they are first touched. Writes beyond the end of the
+ * file are discarded, so the file never grows.
+ *
  * Returns the length of the file on success, or -1 if an error occurred.
  */
 int mmap(int fileDescriptor, char *address);
@@ -257,6 +264,28 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Create a new process running the same program as the current process, with
+ * a copy of its memory, its open file descriptors and its registers. The
+ * memory is shared until either process writes it, so the copy is cheap. The
+ * open files are shared too, including their file positions. Maps made with
+ * mmap() are not inherited.
+ *
+ * fork() returns the child process's process ID, which can be passed to
+ * join(), in the parent, and 0 in the child. On error, returns -1 and no
+ * child is created.
+ */
+int fork();
+
+/**
+ * Remove the map made by mmap() at address, flushing its dirty pages to disk,
+ * without closing the file descriptor. read() and write() work on the file
+ * descriptor again afterwards.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -1,7 +1,6 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.PriorityQueue;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
@@ -23,27 +22,14 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes every thread
+     * whose time has come, then causes the current thread to yield, forcing a
+     * context switch if there is another thread that should be run.
      */
     public void timerInterrupt()
 	{
+		advance(Machine.timer().getTime());
 		KThread.currentThread().yield();
-		long curTime=Machine.timer().getTime();
-		while(true)
-		{
-			Condition curThread=waitQueue.peek();
-			if(waitQueue.peek()!=null&&waitQueue.peek().extra<=curTime)
-			{
-				waitQueue.poll();
-				Lock condLock=curThread.getLock();
-				condLock.acquire();
-				curThread.wakeAll();
-				condLock.release();
-			}
-			else break;
-		}
     }
 
     /**
@@ -62,20 +48,188 @@ public class Alarm {
      */
     public void waitUntil(long x)
 	{
-		// for now, cheat just to get something working (busy waiting is bad)
-		/* Code for busy waiting
-		long wakeTime=Machine.timer().getTime()+x;
-		while(wakeTime>Machine.timer().getTime()) KThread.yield();
-		*/
-		long wakeTime=Machine.timer().getTime()+x;
-		Lock condLock=new Lock();
-		Condition cond=new Condition(condLock,wakeTime);
-		condLock.acquire();
-		waitQueue.add(cond);
-		cond.sleep();
-		condLock.release();
+		boolean intStatus=Machine.interrupt().disable();
+
+		KThread thread=KThread.currentThread();
+		thread.alarmTime=Machine.timer().getTime()+x;
+		insert(thread);
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/*
+	 * Sleeping threads are kept in a hierarchical timer wheel of
+	 * <tt>numLevels</tt> levels of 64 slots each. Level <i>l</i> holds the
+	 * threads due in the current 64^(l+1) tick block of <tt>wheelTime</tt>,
+	 * but not in its current 64^l tick block, in the slot given by bits
+	 * 6l..6l+5 of their wake time; threads due beyond the top level wait in
+	 * <tt>overflow</tt>. A bitmap per level records which slots are in use,
+	 * so that advancing the wheel jumps straight to the next occupied slot,
+	 * and entering a slot of a higher level cascades its threads down.
+	 */
+
+	/**
+	 * Add a sleeping thread to the wheel, according to its
+	 * <tt>alarmTime</tt>.
+	 */
+	private void insert(KThread thread)
+	{
+		if(thread.alarmTime<wheelTime)
+			thread.alarmTime=wheelTime;
+		numSleeping++;
+
+		for(int level=0;level<numLevels;level++)
+		{
+			int shift=level*slotBits;
+			if((thread.alarmTime>>(shift+slotBits))==(wheelTime>>(shift+slotBits)))
+			{
+				int slot=(int)(thread.alarmTime>>shift)&slotMask;
+				thread.alarmNext=slots[level][slot];
+				slots[level][slot]=thread;
+				occupied[level]|=1L<<slot;
+				return;
+			}
+		}
+		thread.alarmNext=overflow;
+		overflow=thread;
+	}
+
+	/**
+	 * Wake every thread due at or before <i>time</i>.
+	 */
+	private void advance(long time)
+	{
+		while(numSleeping>0&&wheelTime<=time)
+		{
+			int slot=(int)wheelTime&slotMask;
+			if((occupied[0]&(1L<<slot))!=0)
+			{
+				KThread thread=slots[0][slot];
+				slots[0][slot]=null;
+				occupied[0]&=~(1L<<slot);
+				while(thread!=null)
+				{
+					KThread next=thread.alarmNext;
+					thread.alarmNext=null;
+					numSleeping--;
+					thread.ready();
+					thread=next;
+				}
+			}
+
+			if(!nextSlot(time))
+				break;
+		}
+		if(numSleeping==0&&wheelTime<=time)
+			wheelTime=time+1;
 	}
-    	
-	private PriorityQueue<Condition> waitQueue=new PriorityQueue<Condition>();
-}
 
+	/**
+	 * Move <tt>wheelTime</tt> to the start of the next occupied slot,
+	 * cascading that slot's threads into the lower levels, unless that slot
+	 * starts after <i>time</i>.
+	 *
+	 * @return	<tt>true</tt> if <tt>wheelTime</tt> moved.
+	 */
+	private boolean nextSlot(long time)
+	{
+		for(int level=0;level<numLevels;level++)
+		{
+			int shift=level*slotBits;
+			int slot=(int)(wheelTime>>shift)&slotMask;
+			long later=(slot==slotMask)?0:occupied[level]&(-1L<<(slot+1));
+			if(later!=0)
+			{
+				int next=Long.numberOfTrailingZeros(later);
+				long start=((wheelTime>>(shift+slotBits))<<(shift+slotBits))+((long)next<<shift);
+				if(start>time)
+					return false;
+				wheelTime=start;
+				if(level>0)
+				{
+					KThread thread=slots[level][next];
+					slots[level][next]=null;
+					occupied[level]&=~(1L<<next);
+					reinsert(thread);
+				}
+				return true;
+			}
+		}
+
+		// every level is empty; start the next top-level block
+		int shift=numLevels*slotBits;
+		long start=((wheelTime>>shift)+1)<<shift;
+		if(start>time)
+			return false;
+		wheelTime=start;
+		KThread thread=overflow;
+		overflow=null;
+		reinsert(thread);
+		return true;
+	}
+
+	private void reinsert(KThread thread)
+	{
+		while(thread!=null)
+		{
+			KThread next=thread.alarmNext;
+			numSleeping--;
+			insert(thread);
+			thread=next;
+		}
+	}
+
+	/**
+	 * Test if this module is working. Threads sleep for times from zero to
+	 * beyond the span of the wheel's first three levels, so that many
+	 * wake-ups cascade down from level 2 or 3, and none may wake early.
+	 */
+	public static void selfTest()
+	{
+		final Semaphore done=new Semaphore(0);
+
+		for(int i=0;i<numTestThreads;i++)
+		{
+			final int first=i;
+			new KThread(new Runnable()
+			{
+				public void run()
+				{
+					for(int j=0;j<numTestSleeps;j++)
+					{
+						long x=testTimes[(first+j)%testTimes.length];
+						long start=Machine.timer().getTime();
+						ThreadedKernel.alarm.waitUntil(x);
+						Lib.assertTrue(Machine.timer().getTime()>=start+x);
+					}
+					done.V();
+				}
+			}).setName("sleeper "+i).fork();
+		}
+
+		for(int i=0;i<numTestThreads;i++)
+			done.P();
+	}
+
+	/** Sleep times for the self test, around the boundaries of the levels. */
+	private static final long[] testTimes=
+		{0,1,63,64,500,4095,4096,10000,262143,262144,300000};
+	/** Kept below the default <tt>TCB.maxThreads</tt>. */
+	private static final int numTestThreads=100;
+	private static final int numTestSleeps=10;
+
+	private static final int slotBits=6;
+	private static final int slotMask=(1<<slotBits)-1;
+	private static final int numLevels=5;
+
+	/** The wheel's slots, each a list chained through <tt>alarmNext</tt>. */
+	private KThread[][] slots=new KThread[numLevels][1<<slotBits];
+	/** Which slots of each level hold threads. */
+	private long[] occupied=new long[numLevels];
+	/** Threads due too far ahead for the wheel. */
+	private KThread overflow=null;
+	/** The earliest time the wheel has not yet passed. */
+	private long wheelTime=0;
+	private int numSleeping=0;
+}
@@ -16,6 +16,22 @@ public class Communicator
      */
     public Communicator()
 	{
+		this(0);
+    }
+
+    /**
+     * Allocate a new communicator that buffers up to <i>capacity</i> words.
+     * Speakers then return as soon as their words are in the buffer, and
+     * only wait when it is full. A capacity of zero gives the usual
+     * synchronous communicator.
+     *
+     * @param	capacity	the number of words to buffer.
+     */
+    public Communicator(int capacity)
+	{
+		Lib.assertTrue(capacity>=0);
+		if(capacity>0)
+			buffer=new int[capacity];
     }
 
     /**
@@ -29,24 +45,56 @@ public class Communicator
      * @param	word	the integer to transfer.
      */
     public void speak(int word)
+	{
+		speak(new int[]{word});
+    }
+
+    /**
+     * Transfer all of <i>words</i>, in order, to listening threads. The words
+     * of one call are never interleaved with those of another speaker.
+     *
+     * <p>
+     * Unless this communicator has a buffer, does not return until listeners
+     * have received every word.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speak(int[] words)
 	{
 		condLock.acquire();
-		if(protect==1) condProtect.sleep();
-		speakers++;
-		protect=1;
-		if(listeners==0)
+		while(speaking)
+			condProtect.sleep();
+		speaking=true;
+
+		if(buffer==null)
 		{
-			condSpeaker.sleep();
-			message=word;
-			condPaired.wake();
+			pending=words;
+			pendingOffset=0;
+			condListener.wake();
+			while(pendingOffset<words.length)
+				condSpeaker.sleep();
+			pending=null;
 		}
 		else
 		{
-			message=word;
-			listeners--;
-			speakers--;
-			condListener.wake();
+			int offset=0;
+			while(offset<words.length)
+			{
+				while(count==buffer.length)
+					condSpeaker.sleep();
+				int n=Math.min(words.length-offset,buffer.length-count);
+				int tail=(head+count)%buffer.length;
+				int first=Math.min(n,buffer.length-tail);
+				System.arraycopy(words,offset,buffer,tail,first);
+				System.arraycopy(words,offset+first,buffer,0,n-first);
+				offset+=n;
+				count+=n;
+				condListener.wake();
+			}
 		}
+
+		speaking=false;
+		condProtect.wake();
 		condLock.release();
     }
 
@@ -58,32 +106,194 @@ public class Communicator
      */    
     public int listen()
 	{
-		int ret=0;
+		int[] word=new int[1];
+		listen(word);
+		return word[0];
+    }
+
+    /**
+     * Wait for a thread to speak through this communicator, and then receive
+     * as many of its words as are available and fit in <i>into</i>, in
+     * order.
+     *
+     * @param	into	where to store the words received.
+     * @return	the number of words received, at least one.
+     */
+    public int listen(int[] into)
+	{
+		Lib.assertTrue(into.length>0);
+		int n;
 		condLock.acquire();
-		listeners++;
-		if(speakers==0) condListener.sleep();
+
+		if(buffer==null)
+		{
+			while(pending==null||pendingOffset==pending.length)
+				condListener.sleep();
+			n=Math.min(into.length,pending.length-pendingOffset);
+			System.arraycopy(pending,pendingOffset,into,0,n);
+			pendingOffset+=n;
+			if(pendingOffset==pending.length)
+				condSpeaker.wake();
+			else
+				condListener.wake();
+		}
 		else
 		{
-			speakers--;
-			listeners--;
+			while(count==0)
+				condListener.sleep();
+			n=Math.min(into.length,count);
+			int first=Math.min(n,buffer.length-head);
+			System.arraycopy(buffer,head,into,0,first);
+			System.arraycopy(buffer,0,into,first,n-first);
+			head=(head+n)%buffer.length;
+			count-=n;
 			condSpeaker.wake();
-			condPaired.sleep();
+			if(count>0)
+				condListener.wake();
 		}
-		ret=message;
-		protect=0;
-		condProtect.wake();
+
 		condLock.release();
-		return ret;
+		return n;
     }
 
-	private int speakers=0;
-	private int listeners=0;
-	private int protect=0;
-	private int message=0;
+    /**
+     * Test if this module is working, both synchronous and with a buffer
+     * small enough that the batches wrap around it.
+     */
+    public static void selfTest()
+	{
+		for(int capacity:new int[]{0,5})
+		{
+			testBatches(new Communicator(capacity));
+			testListeners(new Communicator(capacity));
+		}
+	}
+
+	/**
+	 * Two speakers each speak a batch, which one listener receives a few
+	 * words at a time. Each batch must arrive whole and in order.
+	 */
+	private static void testBatches(Communicator comm)
+	{
+		int[][] batches=new int[2][testWords];
+		for(int i=0;i<testWords;i++)
+		{
+			batches[0][i]=1000+i;
+			batches[1][i]=2000+i;
+		}
+		new KThread(new Speaker(comm,batches[0])).setName("speaker 0").fork();
+		new KThread(new Speaker(comm,batches[1])).setName("speaker 1").fork();
+
+		int[] received=new int[2*testWords];
+		int[] into=new int[7];
+		for(int n=0;n<received.length;)
+		{
+			int got=comm.listen(into);
+			Lib.assertTrue(got>0&&n+got<=received.length);
+			System.arraycopy(into,0,received,n,got);
+			n+=got;
+		}
+
+		int first=received[0];
+		int second=received[testWords];
+		Lib.assertTrue((first==1000&&second==2000)||(first==2000&&second==1000));
+		for(int i=0;i<testWords;i++)
+		{
+			Lib.assertTrue(received[i]==first+i);
+			Lib.assertTrue(received[testWords+i]==second+i);
+		}
+	}
+
+	/**
+	 * One batch is shared among several listeners, each of which must see
+	 * different words, and every word must be seen once. Each listener
+	 * then stops on a -1, spoken one at a time.
+	 */
+	private static void testListeners(Communicator comm)
+	{
+		int[] words=new int[testWords];
+		for(int i=0;i<testWords;i++)
+			words[i]=i;
+		int[] seen=new int[testWords];
+		Semaphore done=new Semaphore(0);
+
+		for(int i=0;i<testListeners;i++)
+			new KThread(new Listener(comm,seen,done)).setName("listener "+i).fork();
+
+		comm.speak(words);
+		for(int i=0;i<testListeners;i++)
+		{
+			comm.speak(-1);
+			done.P();
+		}
+
+		for(int i=0;i<testWords;i++)
+			Lib.assertTrue(seen[i]==1);
+	}
+
+	private static class Speaker implements Runnable
+	{
+		Speaker(Communicator comm,int[] words)
+		{
+			this.comm=comm;
+			this.words=words;
+		}
+
+		public void run()
+		{
+			comm.speak(words);
+		}
+
+		private Communicator comm;
+		private int[] words;
+	}
+
+	private static class Listener implements Runnable
+	{
+		Listener(Communicator comm,int[] seen,Semaphore done)
+		{
+			this.comm=comm;
+			this.seen=seen;
+			this.done=done;
+		}
+
+		public void run()
+		{
+			int[] into=new int[3];
+			boolean stop=false;
+			while(!stop)
+			{
+				int n=comm.listen(into);
+				for(int i=0;i<n;i++)
+				{
+					if(into[i]==-1)
+						stop=true;
+					else
+						seen[into[i]]++;
+				}
+			}
+			done.V();
+		}
+
+		private Communicator comm;
+		private int[] seen;
+		private Semaphore done;
+	}
+
+	private static final int testWords=50;
+	private static final int testListeners=3;
+
+	/** <tt>true</tt> while a speaker is transferring its words. */
+	private boolean speaking=false;
+	/** The words of a synchronous speaker, and how many have been taken. */
+	private int[] pending=null;
+	private int pendingOffset=0;
+	/** The buffered words, if this communicator has a buffer. */
+	private int[] buffer=null;
+	private int head=0;
+	private int count=0;
 	private Lock condLock=new Lock();
 	private Condition condProtect=new Condition(condLock);
 	private Condition condSpeaker=new Condition(condLock);
 	private Condition condListener=new Condition(condLock);
-	private Condition condPaired=new Condition(condLock);
 }
-
@@ -49,7 +49,7 @@ import java.util.LinkedList;
  * gets a chance to run. The advance to Mesa-style semantics is that it is a
  * lot easier to implement.
  */
-public class Condition implements Comparable
+public class Condition
 {
     /**
      * Allocate a new condition variable.
@@ -64,12 +64,6 @@ public class Condition implements Comparable
 		this.conditionLock = conditionLock;
 		waitQueue = new LinkedList<Semaphore>();
     }
-	public Condition(Lock conditionLock,long extra)
-	{
-		this.conditionLock = conditionLock;
-		waitQueue = new LinkedList<Semaphore>();
-		this.extra=extra;
-	}
 
     /**
      * Atomically release the associated lock and go to sleep on this condition
@@ -121,15 +115,7 @@ public class Condition implements Comparable
 		return conditionLock;
 	}
 
-	public int compareTo(Object other)
-	{
-		if(extra<((Condition)other).extra) return -1;
-		else if (extra==((Condition)other).extra) return 0;
-		else return 1;
-	}
-
     private Lock conditionLock;
     private LinkedList<Semaphore> waitQueue;
-	public long extra;
 }
 
@@ -310,7 +310,7 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() { while (true) idle(); }
 	});
 	idleThread.setName("idle");
 
@@ -319,6 +319,29 @@ public class KThread {
 	idleThread.fork();
     }
     
+    /**
+     * Run the next ready thread, or if there is none, wait for an interrupt.
+     * Called over and over by the idle thread. This has the same effect as
+     * <tt>yield()</tt>, but while nothing is ready to run, simulated time
+     * passes in one step rather than one call per kernel tick.
+     */
+    private static void idle() {
+	Lib.assertTrue(currentThread == idleThread);
+
+	Machine.interrupt().disable();
+
+	KThread nextThread = readyQueue.nextThread();
+	if (nextThread == null) {
+	    Machine.interrupt().idle();
+	    return;
+	}
+
+	currentThread.ready();
+	nextThread.run();
+
+	Machine.interrupt().enable();
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
@@ -658,6 +681,14 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * The time at which the alarm should wake this thread, while it sleeps
+     * in <tt>Alarm.waitUntil()</tt>.
+     */
+    long alarmTime;
+    /** The next thread in the same slot of the alarm's timer wheel. */
+    KThread alarmNext = null;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
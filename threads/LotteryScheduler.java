@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
 import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -42,7 +40,438 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getLotteryState(thread).getEffectiveTickets(),
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean changed = false;
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority < priorityMaximum) {
+	    setPriority(thread, priority+1);
+	    changed = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean changed = false;
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority > priorityMinimum) {
+	    setPriority(thread, priority-1);
+	    changed = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Test if this module is working. Uses a scheduler of its own, and
+     * threads that are never forked, so it does not matter which scheduler
+     * the kernel runs.
+     */
+    public static void selfTest() {
+	LotteryScheduler s = new LotteryScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+	s.setPriority(a, 1);
+	s.setPriority(b, 2);
+	s.setPriority(c, 6);
+
+	// tickets add up along the chain c -> b -> a
+	ThreadQueue lock1 = s.newThreadQueue(true);
+	ThreadQueue lock2 = s.newThreadQueue(true);
+	lock1.acquire(a);
+	lock2.acquire(b);
+	lock1.waitForAccess(b);
+	Lib.assertTrue(s.getEffectivePriority(a) == 3);
+	lock2.waitForAccess(c);
+	Lib.assertTrue(s.getEffectivePriority(b) == 8);
+	Lib.assertTrue(s.getEffectivePriority(a) == 9);
+	s.setPriority(c, 100);
+	Lib.assertTrue(s.getEffectivePriority(a) == 103);
+
+	Lib.assertTrue(lock1.nextThread() == b);
+	Lib.assertTrue(s.getEffectivePriority(a) == 1);
+	Lib.assertTrue(s.getEffectivePriority(b) == 102);
+	Lib.assertTrue(lock2.nextThread() == c);
+	Lib.assertTrue(s.getEffectivePriority(b) == 2);
+
+	// enough waiters to grow the queue twice
+	LotteryQueue queue = (LotteryQueue) s.newThreadQueue(true);
+	KThread owner = new KThread().setName("owner");
+	queue.acquire(owner);
+
+	int numWaiters = initialSlots*4;
+	long sum = 0;
+	for (int i=0; i<numWaiters; i++) {
+	    KThread thread = new KThread().setName("waiter " + i);
+	    s.setPriority(thread, i+1);
+	    queue.waitForAccess(thread);
+	    sum += i+1;
+	}
+	Lib.assertTrue(queue.waiters.length == numWaiters);
+	Lib.assertTrue(s.getEffectivePriority(owner) == 1 + sum);
+
+	// each winner holds the tickets of the rest; putting it back reuses
+	// its slot
+	for (int i=0; i<numWaiters; i++) {
+	    KThread winner = queue.nextThread();
+	    Lib.assertTrue(s.getEffectivePriority(winner) == sum);
+	    Lib.assertTrue(s.getEffectivePriority(owner) == 1);
+	    queue.waitForAccess(winner);
+	}
+	Lib.assertTrue(queue.waiters.length == numWaiters);
+
+	queue.acquire(owner);
+	Lib.assertTrue(s.getEffectivePriority(owner) == 1 + sum);
+
+	// every waiter is drawn exactly once
+	HashSet<KThread> drawn = new HashSet<KThread>();
+	KThread winner;
+	while ((winner = queue.nextThread()) != null)
+	    Lib.assertTrue(drawn.add(winner));
+	Lib.assertTrue(drawn.size() == numWaiters);
+	Lib.assertTrue(s.getEffectivePriority(owner) == 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * Each waiting thread occupies a slot in a Fenwick tree over the
+     * effective ticket counts, so drawing a winner, adding or removing a
+     * thread, and changing a thread's tickets all take <i>O(log n)</i> time.
+     * Slots freed by departing threads are reused by the next arrivals.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    // a thread cannot donate tickets to itself
+	    if (owner == state)
+		release();
+
+	    if (numFree == 0)
+		grow();
+
+	    int slot = freeSlots[--numFree];
+	    waiters[slot] = state;
+	    state.waitingOn = this;
+	    state.slot = slot;
+	    adjust(slot, state.getEffectiveTickets());
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    release();
+	    setOwner(getLotteryState(thread));
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    release();
+
+	    LotteryState winner = pickWinner();
+	    if (winner == null)
+		return null;
+
+	    adjust(winner.slot, -winner.getEffectiveTickets());
+	    waiters[winner.slot] = null;
+	    freeSlots[numFree++] = winner.slot;
+	    winner.waitingOn = null;
+
+	    setOwner(winner);
+	    return winner.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<waiters.length; i++) {
+		if (waiters[i] != null)
+		    System.out.print(waiters[i].thread + " (" +
+				     waiters[i].getEffectiveTickets() + ") ");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Draw a winning ticket among the waiting threads.
+	 *
+	 * @return	the thread holding the winning ticket, or <tt>null</tt> if
+	 *		no thread is waiting.
+	 */
+	private LotteryState pickWinner() {
+	    if (total == 0)
+		return null;
+
+	    long ticket = (long) (Lib.random() * total);
+
+	    // descend the tree for the first slot whose prefix sum exceeds
+	    // the ticket
+	    int slot = 0;
+	    for (int step=tree.length/2; step>0; step/=2) {
+		if (tree[slot+step] <= ticket) {
+		    slot += step;
+		    ticket -= tree[slot];
+		}
+	    }
+
+	    Lib.assertTrue(waiters[slot] != null);
+	    return waiters[slot];
+	}
+
+	/**
+	 * Change the tickets held in a slot, and pass the change on to the
+	 * owner of this queue.
+	 */
+	private void adjust(int slot, long delta) {
+	    update(slot, delta);
+
+	    if (transferPriority && owner != null)
+		owner.addDonation(delta);
+	}
+
+	/**
+	 * Change the tickets held in a slot.
+	 */
+	void update(int slot, long delta) {
+	    for (int i=slot+1; i<tree.length; i+=i&-i)
+		tree[i] += delta;
+	    total += delta;
+	}
+
+	private void setOwner(LotteryState state) {
+	    owner = state;
+	    if (transferPriority)
+		owner.addDonation(total);
+	}
+
+	private void release() {
+	    if (owner != null && transferPriority)
+		owner.addDonation(-total);
+	    owner = null;
+	}
+
+	/**
+	 * Double the number of slots, rebuilding the tree.
+	 */
+	private void grow() {
+	    int oldSize = waiters.length;
+
+	    LotteryState[] newWaiters = new LotteryState[oldSize*2];
+	    System.arraycopy(waiters, 0, newWaiters, 0, oldSize);
+	    waiters = newWaiters;
+
+	    tree = new long[oldSize*2+1];
+	    for (int i=1; i<tree.length; i++) {
+		if (waiters[i-1] != null)
+		    tree[i] += waiters[i-1].getEffectiveTickets();
+		int parent = i + (i&-i);
+		if (parent < tree.length)
+		    tree[parent] += tree[i];
+	    }
+
+	    freeSlots = new int[oldSize*2];
+	    for (int i=oldSize*2-1; i>=oldSize; i--)
+		freeSlots[numFree++] = i;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	private LotteryState owner = null;
+	/** The total effective tickets of the waiting threads. */
+	private long total = 0;
+
+	/** The waiting thread in each slot, or <tt>null</tt>. */
+	private LotteryState[] waiters = new LotteryState[initialSlots];
+	/** A Fenwick tree over the tickets in each slot, indexed from 1. */
+	private long[] tree = new long[initialSlots+1];
+	private int[] freeSlots = initialFreeSlots();
+	private int numFree = initialSlots;
+    }
+
+    private static int[] initialFreeSlots() {
+	int[] slots = new int[initialSlots];
+	for (int i=0; i<initialSlots; i++)
+	    slots[i] = initialSlots-1-i;
+	return slots;
+    }
+
+    /** The number of slots a new queue has; must be a power of two. */
+    private static final int initialSlots = 8;
+
+    /**
+     * Numbers each round of donation propagation, so that it stops if the
+     * holder chain loops back on itself.
+     */
+    private int propagation = 0;
+
+    /**
+     * The lottery state of a thread: its own tickets, the tickets donated to
+     * it through the queues it owns, and the queue it is waiting on, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the tickets this thread holds, including donations.
+	 *
+	 * @return	the effective tickets of the associated thread.
+	 */
+	public long getEffectiveTickets() {
+	    return tickets + donated;
+	}
+
+	/**
+	 * Set the tickets of the associated thread.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+	    propagate(delta);
+	}
+
+	/**
+	 * Called when a queue owned by the associated thread gains or loses
+	 * waiting tickets.
+	 *
+	 * @param	delta	the change in donated tickets.
+	 */
+	void addDonation(long delta) {
+	    donated += delta;
+	    propagate(delta);
+	}
+
+	/**
+	 * Pass a change in effective tickets on to the queue this thread
+	 * waits on, and from there up the holder chain. A thread whose tickets
+	 * would come back around to it through a cycle of waits is not
+	 * credited twice.
+	 */
+	private void propagate(long delta) {
+	    if (delta == 0 || waitingOn == null)
+		return;
+
+	    int round = ++propagation;
+	    visited = round;
+
+	    LotteryState state = this;
+	    while (state.waitingOn != null) {
+		LotteryQueue queue = state.waitingOn;
+		queue.update(state.slot, delta);
+
+		if (!queue.transferPriority || queue.owner == null ||
+		    queue.owner.visited == round)
+		    break;
+
+		state = queue.owner;
+		state.visited = round;
+		state.donated += delta;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = priorityDefault;
+	/** The tickets donated through the queues this thread owns. */
+	protected long donated = 0;
+
+	/** The queue this thread waits on, or <tt>null</tt>. */
+	LotteryQueue waitingOn = null;
+	/** This thread's slot in <tt>waitingOn</tt>. */
+	int slot;
+
+	private int visited = 0;
     }
 }
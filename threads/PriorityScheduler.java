@@ -2,10 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.lang.Math;
+import java.util.ArrayList;
 import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Comparator;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -98,6 +97,59 @@ public class PriorityScheduler extends Scheduler
 	return true;
     }
 
+    /**
+     * Test if this module is working. Uses a scheduler of its own, and
+     * threads that are never forked, so it does not matter which scheduler
+     * the kernel runs.
+     */
+    public static void selfTest() {
+	PriorityScheduler s = new PriorityScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+	KThread d = new KThread().setName("d");
+	s.setPriority(a, 1);
+	s.setPriority(b, 2);
+	s.setPriority(c, 6);
+
+	// c waits for b's lock while b waits for a's
+	ThreadQueue lock1 = s.newThreadQueue(true);
+	ThreadQueue lock2 = s.newThreadQueue(true);
+	lock1.acquire(a);
+	lock2.acquire(b);
+	lock1.waitForAccess(b);
+	Lib.assertTrue(s.getEffectivePriority(a) == 2);
+	lock2.waitForAccess(c);
+	Lib.assertTrue(s.getEffectivePriority(b) == 6);
+	Lib.assertTrue(s.getEffectivePriority(a) == 6);
+	s.setPriority(c, 3);
+	Lib.assertTrue(s.getEffectivePriority(a) == 3);
+
+	// releasing a lock takes back what was donated through it
+	Lib.assertTrue(lock1.nextThread() == b);
+	Lib.assertTrue(s.getEffectivePriority(a) == 1);
+	Lib.assertTrue(s.getEffectivePriority(b) == 3);
+	Lib.assertTrue(lock2.nextThread() == c);
+	Lib.assertTrue(s.getEffectivePriority(b) == 2);
+
+	// higher priorities first, and FIFO within a priority
+	ThreadQueue queue = s.newThreadQueue(false);
+	s.setPriority(d, 2);
+	queue.waitForAccess(a);
+	queue.waitForAccess(b);
+	queue.waitForAccess(d);
+	queue.waitForAccess(c);
+	Lib.assertTrue(queue.nextThread() == c);
+	Lib.assertTrue(queue.nextThread() == b);
+	Lib.assertTrue(queue.nextThread() == d);
+	Lib.assertTrue(queue.nextThread() == a);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -126,6 +178,14 @@ public class PriorityScheduler extends Scheduler
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in one bucket per priority level, each ordered
+     * by how long its threads have been waiting, so the next thread is the
+     * first in the highest non-empty bucket. A queue that transfers priority
+     * remembers what it is donating to its owner, and when that changes the
+     * owner is told right away, rather than recomputing donations whenever
+     * an effective priority is asked for.
      */
     protected class PriorityQueue extends ThreadQueue
 	{
@@ -133,80 +193,36 @@ public class PriorityScheduler extends Scheduler
 		{
 			this.transferPriority = transferPriority;
 			this.waitingPriority=-1;
-			this.valid=false;
-			this.waitQueue=new HashSet<ThreadState>();
+			this.waitQueue=new ArrayList<TreeSet<ThreadState>>(priorityMaximum+1);
+			for(int i=0;i<=priorityMaximum;i++)
+				waitQueue.add(new TreeSet<ThreadState>(waitOrder));
 		}
 
 		public void waitForAccess(KThread thread)
 		{
-			/*
-			System.out.println("Before wait:");
-			print();
-			*/
 			Lib.assertTrue(Machine.interrupt().disabled());
-			waitQueue.add(getThreadState(thread));
-			this.valid=false;
 			getThreadState(thread).waitForAccess(this);
-			/*
-			System.out.println("After wait:");
-			print();
-			*/
 		}
 
 		public void acquire(KThread thread)
 		{
-			/*
-			System.out.println("Before acquire:");
-			print();
-			*/
 			Lib.assertTrue(Machine.interrupt().disabled());
-			acquiringThread=getThreadState(thread);
 			getThreadState(thread).acquire(this);
-			/*
-			System.out.println("After acquire:");
-			print();
-			*/
 		}
 
 		public KThread nextThread()
 		{
-			/*
-			System.out.println("Before next:");
-			print();
-			*/
 			Lib.assertTrue(Machine.interrupt().disabled());
-			if(waitQueue.isEmpty())
-			{
-				if(transferPriority)
-				{
-					acquiringThread.acquiredQueues.remove(this);
-					this.valid=false;
-					acquiringThread.valid=false;
-				}
-				acquiringThread=null;
-				/*
-				System.out.println("After next:");
-				print();
-				*/
+			release();
+
+			ThreadState next=pickNextThread();
+			if(next==null)
 				return null;
-			}
-			else
-			{
-				acquiringThread=pickNextThread();
-				if(transferPriority)
-				{
-					acquiringThread.acquiredQueues.remove(this);
-					this.valid=false;
-					acquiringThread.valid=false;
-				}
-				waitQueue.remove(acquiringThread);
-				acquiringThread.acquire(this);
-				/*
-				System.out.println("After next:");
-				print();
-				*/
-				return acquiringThread.thread;
-			}
+
+			remove(next);
+			next.waitingFor=null;
+			next.acquire(this);
+			return next.thread;
 		}
 
 		/**
@@ -218,27 +234,10 @@ public class PriorityScheduler extends Scheduler
 		 */
 		protected ThreadState pickNextThread()
 		{
-			// implement me
-			if(waitQueue.isEmpty())
+			int top=highestWaiting();
+			if(top==-1)
 				return null;
-			else
-			{
-				boolean found=false;
-				int maxEff=0;
-				long minTime=0;
-				ThreadState next=null;
-				for(ThreadState x:waitQueue)
-				{
-					if(!found||x.getEffectivePriority()>maxEff||(x.getEffectivePriority()==maxEff&&x.waitTime<minTime))
-					{
-						found=true;
-						maxEff=x.getEffectivePriority();
-						minTime=x.waitTime;
-						next=x;
-					}
-				}
-				return next;
-			}
+			return waitQueue.get(top).first();
 		}
 		
 		public void print()
@@ -248,24 +247,80 @@ public class PriorityScheduler extends Scheduler
 				System.out.println("Acquired Thread: "+acquiringThread.thread);
 			else
 				System.out.println("Acquired Thread: null");
-			for(ThreadState x:waitQueue)
-				System.out.println(x.thread);
+			for(int i=priorityMaximum;i>=priorityMinimum;i--)
+				for(ThreadState x:waitQueue.get(i))
+					System.out.println(x.thread);
 		}
 
+		/**
+		 * Return the highest effective priority of any thread waiting on
+		 * this queue, or -1 if no thread is waiting. This is what the queue
+		 * donates to its owner, if it transfers priority.
+		 */
 		public int getEffectivePriority()
 		{
-			/*
-			System.out.println("getEffectivePriority called on queue "+this);
-			print();
-			*/
-			if(!valid)
-			{
-				waitingPriority=-1;
-				for(ThreadState x:waitQueue)
-					waitingPriority=Math.max(waitingPriority,x.getEffectivePriority());
-				valid=true;
-			}
-			return waitingPriority;
+			return highestWaiting();
+		}
+
+		private int highestWaiting()
+		{
+			for(int i=priorityMaximum;i>=priorityMinimum;i--)
+				if(!waitQueue.get(i).isEmpty())
+					return i;
+			return -1;
+		}
+
+		void add(ThreadState state)
+		{
+			waitQueue.get(state.effectivePriority).add(state);
+			updateDonation();
+		}
+
+		void remove(ThreadState state)
+		{
+			waitQueue.get(state.effectivePriority).remove(state);
+			updateDonation();
+		}
+
+		/**
+		 * Move a waiting thread whose effective priority has just changed
+		 * into the right bucket.
+		 */
+		void reposition(ThreadState state,int oldPriority)
+		{
+			waitQueue.get(oldPriority).remove(state);
+			waitQueue.get(state.effectivePriority).add(state);
+			updateDonation();
+		}
+
+		/**
+		 * Give up ownership of this queue, taking back whatever it was
+		 * donating to its owner.
+		 */
+		void release()
+		{
+			if(acquiringThread==null)
+				return;
+			if(transferPriority)
+				acquiringThread.changeDonation(waitingPriority,-1);
+			acquiringThread=null;
+		}
+
+		/**
+		 * Recompute the priority this queue donates, and pass any change on
+		 * to its owner.
+		 */
+		private void updateDonation()
+		{
+			if(!transferPriority)
+				return;
+			int donation=highestWaiting();
+			if(donation==waitingPriority)
+				return;
+			int oldDonation=waitingPriority;
+			waitingPriority=donation;
+			if(acquiringThread!=null)
+				acquiringThread.changeDonation(oldDonation,donation);
 		}
 
 		/**
@@ -273,12 +328,30 @@ public class PriorityScheduler extends Scheduler
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+		/** The priority this queue donates to its owner, or -1 if none. */
 		protected int waitingPriority;
-		protected boolean valid;
 		protected ThreadState acquiringThread=null;
-		protected HashSet<ThreadState> waitQueue;
+		/** The waiting threads, in one bucket per effective priority. */
+		protected ArrayList<TreeSet<ThreadState>> waitQueue;
     }
 
+    /**
+     * Orders the threads in a bucket by when they started waiting.
+     */
+    private static final Comparator<ThreadState> waitOrder=new Comparator<ThreadState>()
+	{
+		public int compare(ThreadState a,ThreadState b)
+		{
+			return (a.waitTime<b.waitTime)?-1:((a.waitTime>b.waitTime)?1:0);
+		}
+	};
+
+    /**
+     * Numbers calls to <tt>waitForAccess()</tt>, so that threads that start
+     * waiting on the same tick are still served in order.
+     */
+    private long numWaits=0;
+
     /**
      * The scheduling state of a thread. This should include the thread's
      * priority, its effective priority, any objects it owns, and the queue
@@ -297,10 +370,9 @@ public class PriorityScheduler extends Scheduler
 		public ThreadState(KThread thread)
 		{
 			this.thread=thread;
-			this.valid=false;
-			this.acquiredQueues=new HashSet<PriorityQueue>();
-			this.waitingQueues=new HashSet<PriorityQueue>();
-			setPriority(priorityDefault);
+			this.priority=priorityDefault;
+			this.effectivePriority=priorityDefault;
+			this.donations=new int[priorityMaximum+1];
 		}
 
 		/**
@@ -320,14 +392,6 @@ public class PriorityScheduler extends Scheduler
 		 */
 		public int getEffectivePriority()
 		{
-			//System.out.println("getEffectivePriority called on thread "+thread);
-			if(!valid)
-			{
-				effectivePriority=priority;
-				for(PriorityQueue x:acquiredQueues)
-					effectivePriority=Math.max(effectivePriority,x.getEffectivePriority());
-				valid=true;
-			}
 			return effectivePriority;
 		}
 
@@ -342,9 +406,7 @@ public class PriorityScheduler extends Scheduler
 			return;
 			
 			this.priority = priority;
-			this.valid=false;
-			for(PriorityQueue x:waitingQueues)
-				x.valid=false;
+			updateEffectivePriority();
 		}
 
 		/**
@@ -361,14 +423,10 @@ public class PriorityScheduler extends Scheduler
 		 */
 		public void waitForAccess(PriorityQueue waitQueue)
 		{
-			if(waitQueue.transferPriority)
-			{
-				waitingQueues.add(waitQueue);
-				waitQueue.valid=false;
-			}
-			waitTime=Machine.timer().getTime();
-			//System.out.println(waitTime);
-			// implement me
+			Lib.assertTrue(waitingFor==null);
+			waitTime=numWaits++;
+			waitingFor=waitQueue;
+			waitQueue.add(this);
 		}
 
 		/**
@@ -383,22 +441,60 @@ public class PriorityScheduler extends Scheduler
 		 */
 		public void acquire(PriorityQueue waitQueue)
 		{
+			waitQueue.release();
+			waitQueue.acquiringThread=this;
 			if(waitQueue.transferPriority)
-			{
-				acquiredQueues.add(waitQueue);
-				this.valid=false;
-			}
-			// implement me
-		}	
+				changeDonation(-1,waitQueue.waitingPriority);
+		}
+
+		/**
+		 * Called when a queue owned by the associated thread changes the
+		 * priority it donates.
+		 *
+		 * @param	oldDonation	the priority donated until now, or -1.
+		 * @param	newDonation	the priority donated from now on, or -1.
+		 */
+		void changeDonation(int oldDonation,int newDonation)
+		{
+			if(oldDonation>=0)
+				donations[oldDonation]--;
+			if(newDonation>=0)
+				donations[newDonation]++;
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority from the priority and the
+		 * donations, and if it changed, move this thread within the queue
+		 * it waits on, which passes the change on to that queue's owner.
+		 */
+		private void updateEffectivePriority()
+		{
+			int newPriority=priority;
+			for(int i=priorityMaximum;i>priority;i--)
+				if(donations[i]>0)
+				{
+					newPriority=i;
+					break;
+				}
+			if(newPriority==effectivePriority)
+				return;
+			int oldPriority=effectivePriority;
+			effectivePriority=newPriority;
+			if(waitingFor!=null)
+				waitingFor.reposition(this,oldPriority);
+		}
 
 		/** The thread with which this object is associated. */	   
 		protected KThread thread;
 		/** The priority of the associated thread. */
 		protected int priority;
-		protected boolean valid;
 		protected int effectivePriority;
-		protected HashSet<PriorityQueue> acquiredQueues;
-		protected HashSet<PriorityQueue> waitingQueues;
+		/** How many owned queues donate each priority. */
+		protected int[] donations;
+		/** The queue this thread is waiting on, if any. */
+		protected PriorityQueue waitingFor=null;
+		/** Orders this thread among the others waiting on its queue. */
 		protected long waitTime;
     }
 }
@@ -47,6 +47,10 @@ public class ThreadedKernel extends Kernel {
      */	
     public void selfTest()
 	{
+		PriorityScheduler.selfTest();
+		LotteryScheduler.selfTest();
+		Alarm.selfTest();
+		Communicator.selfTest();
 		Boat.selfTest();
 		/*
 		KThread.selfTest();
@@ -4,6 +4,9 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -23,6 +26,23 @@ public class UserKernel extends ThreadedKernel {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+
+	// hand out low frames first
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	freeFrames = new int[numPhysPages];
+	for (int ppn=numPhysPages-1; ppn>=0; ppn--)
+	    freeFrames[numFreeFrames++] = ppn;
+	frameLock = new Lock();
+	sharers = new int[numPhysPages];
+
+	textRefs = new int[numPhysPages];
+	textOwners = new TextImage[numPhysPages];
+	textSections = new int[numPhysPages];
+	textPages = new int[numPhysPages];
+	textLock = new Lock();
+
+	processLock = new Lock();
+	fileLock = new Lock();
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -61,6 +81,316 @@ public class UserKernel extends ThreadedKernel {
 	return ((UThread) KThread.currentThread()).process;
     }
 
+    /**
+     * Allocate the specified number of physical pages, all or none.
+     *
+     * @param	count	the number of pages to allocate.
+     * @return	the physical page numbers allocated, or <tt>null</tt> if there
+     *		are not that many free pages.
+     */
+    public static int[] allocateFrames(int count) {
+	Lib.assertTrue(count >= 0);
+
+	frameLock.acquire();
+
+	int[] frames = null;
+	if (count <= numFreeFrames) {
+	    frames = new int[count];
+	    for (int i=0; i<count; i++)
+		frames[i] = freeFrames[--numFreeFrames];
+	}
+
+	frameLock.release();
+	return frames;
+    }
+
+    /**
+     * Return a physical page to the free list.
+     *
+     * @param	ppn	the physical page to free.
+     */
+    public static void freeFrame(int ppn) {
+	frameLock.acquire();
+
+	Lib.assertTrue(numFreeFrames < freeFrames.length);
+	freeFrames[numFreeFrames++] = ppn;
+
+	frameLock.release();
+    }
+
+    /**
+     * Record that one more page table maps a private page copy-on-write.
+     * The first call for a page counts both the original mapping and the
+     * new one.
+     *
+     * @param	ppn	the physical page being shared.
+     */
+    public static void shareFrame(int ppn) {
+	frameLock.acquire();
+
+	sharers[ppn] = (sharers[ppn] == 0) ? 2 : sharers[ppn]+1;
+
+	frameLock.release();
+    }
+
+    /**
+     * Remove one page table's copy-on-write mapping of a physical page. Once
+     * only one mapping remains, the page belongs to it alone again.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if other page tables still map the page, so that
+     *		the caller must neither free nor write it; <tt>false</tt> if
+     *		the page belonged to the caller alone.
+     */
+    public static boolean unshareFrame(int ppn) {
+	frameLock.acquire();
+
+	boolean shared = (sharers[ppn] > 0);
+	if (shared && --sharers[ppn] == 1)
+	    sharers[ppn] = 0;
+
+	frameLock.release();
+	return shared;
+    }
+
+    /**
+     * Test whether a physical page is mapped copy-on-write by more than one
+     * page table.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the page is shared.
+     */
+    public static boolean isFrameShared(int ppn) {
+	return sharers[ppn] > 0;
+    }
+
+    /**
+     * Return a physical page holding the specified page of a read-only
+     * executable section, shared with every other process running the same
+     * executable. The page is loaded from <i>section</i> only if no process
+     * has it already; the load happens without holding the cache lock, so
+     * two processes may both load a page, and the one that finishes second
+     * frees its copy. Each call must be matched by a call to
+     * <tt>releaseTextPage()</tt>.
+     *
+     * @param	executable	the open executable file.
+     * @param	s		the index of the section in the executable.
+     * @param	section		the section, which must be read-only.
+     * @param	spn		the page number within the section.
+     * @return	the physical page number, or -1 if no page was free.
+     */
+    public static int acquireTextPage(OpenFile executable, int s,
+				      CoffSection section, int spn) {
+	Lib.assertTrue(section.isReadOnly());
+
+	textLock.acquire();
+
+	TextImage image = getTextImage(executable);
+	int[] frames = image.frames.get(s);
+	if (frames == null) {
+	    frames = new int[section.getLength()];
+	    Arrays.fill(frames, -1);
+	    image.frames.put(s, frames);
+	}
+
+	int ppn = frames[spn];
+	if (ppn != -1) {
+	    textRefs[ppn]++;
+	    textLock.release();
+	    return ppn;
+	}
+
+	textLock.release();
+
+	int[] allocated = allocateFrames(1);
+	if (allocated == null)
+	    return -1;
+	section.loadPage(spn, allocated[0]);
+
+	textLock.acquire();
+
+	ppn = frames[spn];
+	if (ppn != -1) {
+	    freeFrame(allocated[0]);
+	}
+	else {
+	    ppn = allocated[0];
+	    frames[spn] = ppn;
+	    image.numPages++;
+	    textOwners[ppn] = image;
+	    textSections[ppn] = s;
+	    textPages[ppn] = spn;
+	}
+	textRefs[ppn]++;
+
+	textLock.release();
+	return ppn;
+    }
+
+    /**
+     * Take another reference to a page returned by
+     * <tt>acquireTextPage()</tt>, for a process that inherits the page
+     * instead of loading it.
+     *
+     * @param	ppn	the physical page.
+     */
+    public static void shareTextPage(int ppn) {
+	textLock.acquire();
+
+	Lib.assertTrue(textRefs[ppn] > 0);
+	textRefs[ppn]++;
+
+	textLock.release();
+    }
+
+    /**
+     * Release a page returned by <tt>acquireTextPage()</tt>, freeing it once
+     * no process is using it. When the last page of an executable is freed,
+     * its cache entry is dropped, so the next process to run the file loads
+     * it afresh even if it was rebuilt.
+     *
+     * @param	ppn	the physical page to release.
+     */
+    public static void releaseTextPage(int ppn) {
+	textLock.acquire();
+
+	Lib.assertTrue(textRefs[ppn] > 0);
+	if (--textRefs[ppn] == 0) {
+	    TextImage image = textOwners[ppn];
+	    image.frames.get(textSections[ppn])[textPages[ppn]] = -1;
+	    if (--image.numPages == 0 && textImages.get(image.name) == image)
+		textImages.remove(image.name);
+	    textOwners[ppn] = null;
+
+	    freeFrame(ppn);
+	}
+
+	textLock.release();
+    }
+
+    /**
+     * Stop sharing the text of the named executable with processes started
+     * from now on, because the file is being replaced or removed. Processes
+     * already running it keep their pages.
+     *
+     * @param	name	the name of the executable.
+     */
+    public static void forgetText(String name) {
+	textLock.acquire();
+
+	textImages.remove(name);
+
+	textLock.release();
+    }
+
+    /**
+     * Return the cached text of an executable, starting a new cache entry if
+     * there is none or if the file has changed length since the entry was
+     * made.
+     */
+    private static TextImage getTextImage(OpenFile executable) {
+	String name = executable.getName();
+	int length = executable.length();
+
+	TextImage image = textImages.get(name);
+	if (image == null || image.length != length) {
+	    image = new TextImage(name, length);
+	    textImages.put(name, image);
+	}
+
+	return image;
+    }
+
+    /**
+     * The read-only pages of one executable that are in physical memory.
+     */
+    private static class TextImage {
+	TextImage(String name, int length) {
+	    this.name = name;
+	    this.length = length;
+	}
+
+	/** The name of the executable file. */
+	String name;
+	/** The length of the executable file, to recognize a new version. */
+	int length;
+	/** The physical page of each page of each section, or -1. */
+	HashMap<Integer, int[]> frames = new HashMap<Integer, int[]>();
+	/** The number of pages in <tt>frames</tt> that are not -1. */
+	int numPages = 0;
+    }
+
+    /**
+     * Record that one more process holds an open file, as when a forked
+     * child inherits its parent's file descriptors. Every holder must call
+     * <tt>releaseFile()</tt> instead of closing the file itself.
+     *
+     * @param	file	the open file.
+     */
+    public static void shareFile(OpenFile file) {
+	fileLock.acquire();
+
+	Integer holders = fileHolders.get(file);
+	fileHolders.put(file, (holders == null) ? 2 : holders+1);
+
+	fileLock.release();
+    }
+
+    /**
+     * Give up one process's hold on an open file.
+     *
+     * @param	file	the open file.
+     * @return	<tt>true</tt> if no other process holds the file, so that the
+     *		caller should close it.
+     */
+    public static boolean releaseFile(OpenFile file) {
+	fileLock.acquire();
+
+	Integer holders = fileHolders.get(file);
+	if (holders != null) {
+	    if (holders > 2)
+		fileHolders.put(file, holders-1);
+	    else
+		fileHolders.remove(file);
+	}
+
+	fileLock.release();
+	return holders == null;
+    }
+
+    /**
+     * Add a process to the process table, giving it a new process ID. The
+     * first process added is the root process.
+     *
+     * @param	process	the process to add.
+     * @return	the process ID of <i>process</i>.
+     */
+    public static int addProcess(UserProcess process) {
+	processLock.acquire();
+
+	int pid = nextPID++;
+	processTable.put(pid, process);
+
+	processLock.release();
+	return pid;
+    }
+
+    /**
+     * Remove a process from the process table.
+     *
+     * @param	pid	the process ID of the process to remove.
+     * @return	<tt>true</tt> if no processes remain.
+     */
+    public static boolean removeProcess(int pid) {
+	processLock.acquire();
+
+	Lib.assertTrue(processTable.remove(pid) != null);
+	boolean empty = processTable.isEmpty();
+
+	processLock.release();
+	return empty;
+    }
+
     /**
      * The exception handler. This handler is called by the processor whenever
      * a user instruction causes a processor exception.
@@ -110,6 +440,42 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** The free physical pages, as a stack. */
+    private static int[] freeFrames;
+    private static int numFreeFrames = 0;
+    /** The number of page tables sharing each page copy-on-write, or 0. */
+    private static int[] sharers;
+    /** Guards <tt>freeFrames</tt> and <tt>sharers</tt>. */
+    private static Lock frameLock;
+
+    /** The cached text of each executable, by file name. */
+    private static HashMap<String, TextImage> textImages =
+	new HashMap<String, TextImage>();
+    /** The number of processes mapping each shared page, or 0. */
+    private static int[] textRefs;
+    /** The executable each shared page belongs to. */
+    private static TextImage[] textOwners;
+    /** The section and page number of each shared page. */
+    private static int[] textSections, textPages;
+    /** Guards the text cache and the arrays above. */
+    private static Lock textLock;
+
+    /** The process ID of the first process, which alone may halt. */
+    public static final int rootPID = 0;
+
+    /** Every running process, by process ID. */
+    private static HashMap<Integer, UserProcess> processTable =
+	new HashMap<Integer, UserProcess>();
+    private static int nextPID = rootPID;
+    /** Guards <tt>processTable</tt> and <tt>nextPID</tt>. */
+    private static Lock processLock;
+
+    /** The number of processes holding each shared open file. */
+    private static HashMap<OpenFile, Integer> fileHolders =
+	new HashMap<OpenFile, Integer>();
+    /** Guards <tt>fileHolders</tt>. */
+    private static Lock fileLock;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -23,10 +26,10 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-	int numPhysPages = Machine.processor().getNumPhysPages();
-	pageTable = new TranslationEntry[numPhysPages];
-	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+	pageTable = new TranslationEntry[0];
+
+	fileTable[fdStandardInput] = UserKernel.console.openForReading();
+	fileTable[fdStandardOutput] = UserKernel.console.openForWriting();
     }
     
     /**
@@ -51,12 +54,23 @@ public class UserProcess {
     public boolean execute(String name, String[] args) {
 	if (!load(name, args))
 	    return false;
+
+	pid = UserKernel.addProcess(this);
 	
 	new UThread(this).setName(name).fork();
 
 	return true;
     }
 
+    /**
+     * Return this process's ID.
+     *
+     * @return	the process ID assigned when this process was executed.
+     */
+    public int getPID() {
+	return pid;
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
@@ -91,11 +105,23 @@ public class UserProcess {
 
 	byte[] bytes = new byte[maxLength+1];
 
-	int bytesRead = readVirtualMemory(vaddr, bytes);
+	// read up to the end of one page at a time, stopping at the first
+	// page that holds the terminator
+	int length = 0;
+	while (length < bytes.length) {
+	    int amount = Math.min(bytes.length - length,
+				  pageSize - (vaddr+length) % pageSize);
+	    int bytesRead = readVirtualMemory(vaddr+length, bytes, length,
+					      amount);
+
+	    for (int i=length; i<length+bytesRead; i++) {
+		if (bytes[i] == 0)
+		    return new String(bytes, 0, i);
+	    }
 
-	for (int length=0; length<bytesRead; length++) {
-	    if (bytes[length] == 0)
-		return new String(bytes, 0, length);
+	    if (bytesRead < amount)
+		break;
+	    length += amount;
 	}
 
 	return null;
@@ -131,16 +157,20 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
-
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
+	return transfer(vaddr, data, offset, length, false);
+    }
 
-	return amount;
+    /**
+     * Transfer data from this process's virtual memory to each of the
+     * specified arrays in turn, filling each one completely before moving on
+     * to the next.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	buffers	the arrays where the data will be stored.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int readVirtualMemory(int vaddr, byte[][] buffers) {
+	return transfer(vaddr, buffers, false);
     }
 
     /**
@@ -174,16 +204,275 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
+	return transfer(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Transfer all the data from each of the specified arrays in turn to this
+     * process's virtual memory, as if they were one array.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	buffers	the arrays containing the data to transfer.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int writeVirtualMemory(int vaddr, byte[][] buffers) {
+	return transfer(vaddr, buffers, true);
+    }
+
+    private int transfer(int vaddr, byte[][] buffers, boolean writing) {
+	int total = 0;
+
+	for (int i=0; i<buffers.length; i++) {
+	    int amount = transfer(vaddr+total, buffers[i], 0,
+				  buffers[i].length, writing);
+	    total += amount;
+	    if (amount < buffers[i].length)
+		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Copy between virtual memory and an array, stopping at the first page
+     * that cannot be accessed.
+     *
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	data	the array to transfer to or from.
+     * @param	offset	the first byte of the array to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	writing	<tt>true</tt> to write virtual memory, <tt>false</tt>
+     *			to read it.
+     * @return	the number of bytes successfully transferred.
+     */
+    private int transfer(int vaddr, final byte[] data, final int offset,
+			 int length, final boolean writing) {
+	final Processor processor = Machine.processor();
+
+	return transfer(vaddr, length, writing, new Copier() {
+		int copy(int paddr, int done, int amount) {
+		    if (writing)
+			processor.writeMemory(paddr, data, offset+done, amount);
+		    else
+			processor.readMemory(paddr, data, offset+done, amount);
+		    return amount;
+		}
+	    });
+    }
+
+    /**
+     * Copies one physically contiguous run of bytes to or from virtual
+     * memory.
+     */
+    private abstract static class Copier {
+	/**
+	 * Copy a run of bytes.
+	 *
+	 * @param	paddr	the physical address of the run.
+	 * @param	done	how many bytes of the transfer came before the
+	 *			run.
+	 * @param	amount	the length of the run.
+	 * @return	the number of bytes copied, or -1 on error.
+	 */
+	abstract int copy(int paddr, int done, int amount);
+    }
+
+    /**
+     * Walk the page table one page at a time over a range of virtual memory,
+     * handing each run of pages that are also contiguous in physical memory
+     * to <i>copier</i> in one piece. Stops at the first page that cannot be
+     * accessed, or when <i>copier</i> copies less than a whole run.
+     *
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	writing	<tt>true</tt> if virtual memory will be written.
+     * @param	copier	copies each run.
+     * @return	the number of bytes successfully transferred, or -1 if
+     *		<i>copier</i> failed.
+     */
+    private int transfer(int vaddr, int length, boolean writing,
+			 Copier copier) {
+	if (vaddr < 0)
 	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	int walked = 0, copied = 0;
+	int runStart = -1, runLength = 0;
+	int runVPN = -1, runPages = 0;
+
+	while (walked < length) {
+	    int vpn = Processor.pageFromAddress(vaddr+walked);
+	    int pageOffset = Processor.offsetFromAddress(vaddr+walked);
+	    int amount = Math.min(length-walked, pageSize-pageOffset);
+
+	    TranslationEntry entry = translatePage(vpn, writing);
+	    if (entry == null)
+		break;
+
+	    int paddr = entry.ppn*pageSize + pageOffset;
+
+	    // extend the current physical run if this page follows on from it,
+	    // but not so far that the pages it pins crowd out the rest
+	    if (runStart >= 0 && runStart+runLength == paddr &&
+		runPages < maxRunPages) {
+		runLength += amount;
+		runPages++;
+	    }
+	    else {
+		if (runLength > 0) {
+		    int result = copyRun(copier, runStart, copied, runLength,
+					 runVPN, runPages);
+		    if (result < 0) {
+			releasePage(vpn);
+			return -1;
+		    }
+		    copied += result;
+		    if (result < runLength) {
+			releasePage(vpn);
+			return copied;
+		    }
+		}
+		runStart = paddr;
+		runLength = amount;
+		runVPN = vpn;
+		runPages = 1;
+	    }
+
+	    walked += amount;
+	}
+
+	if (runLength > 0) {
+	    int result = copyRun(copier, runStart, copied, runLength,
+				 runVPN, runPages);
+	    if (result < 0)
+		return -1;
+	    copied += result;
+	}
+
+	return copied;
+    }
+
+    /**
+     * Copy one run of a transfer, and then release the pages it covers.
+     */
+    private int copyRun(Copier copier, int paddr, int done, int length,
+			int firstVPN, int numPages) {
+	int result = copier.copy(paddr, done, length);
+
+	for (int i=0; i<numPages; i++)
+	    releasePage(firstVPN+i);
+
+	return result;
+    }
+
+    /**
+     * Test whether every page of a range of virtual memory can be accessed.
+     *
+     * @param	vaddr	the first byte of the range.
+     * @param	length	the length of the range.
+     * @param	writing	<tt>true</tt> if the range will be written.
+     * @return	<tt>true</tt> if the whole range is accessible.
+     */
+    private boolean isAccessible(int vaddr, int length, boolean writing) {
+	if (vaddr < 0 || length < 0 || vaddr+length < 0)
+	    return false;
+	if (length == 0)
+	    return true;
+
+	int first = Processor.pageFromAddress(vaddr);
+	int last = Processor.pageFromAddress(vaddr+length-1);
+	for (int vpn=first; vpn<=last; vpn++) {
+	    if (translatePage(vpn, writing) == null)
+		return false;
+	    releasePage(vpn);
+	}
+
+	return true;
+    }
+
+    /**
+     * Move bytes between an open file and virtual memory. When physical
+     * memory is an array, the file reads into or writes from it directly,
+     * one call per physically contiguous run; otherwise each run goes
+     * through a buffer.
+     *
+     * @param	file	the file to read or write.
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	fromFile	<tt>true</tt> to read the file into memory,
+     *				<tt>false</tt> to write memory to the file.
+     * @return	the number of bytes transferred, or -1 on error.
+     */
+    private int fileTransfer(final OpenFile file, int vaddr, int length,
+			     final boolean fromFile) {
+	final Processor processor = Machine.processor();
+	ByteBuffer buffer = processor.getMemoryBuffer();
+	final byte[] memory = buffer.hasArray() ? buffer.array() : null;
+
+	return transfer(vaddr, length, fromFile, new Copier() {
+		int copy(int paddr, int done, int amount) {
+		    if (memory != null) {
+			if (fromFile) {
+			    int result = file.read(memory, paddr, amount);
+			    processor.invalidateMemory(paddr, result);
+			    return result;
+			}
+			else
+			    return file.write(memory, paddr, amount);
+		    }
+
+		    byte[] bounce = new byte[amount];
+		    if (fromFile) {
+			int result = file.read(bounce, 0, amount);
+			if (result > 0)
+			    processor.writeMemory(paddr, bounce, 0, result);
+			return result;
+		    }
+		    else {
+			processor.readMemory(paddr, bounce, 0, amount);
+			return file.write(bounce, 0, amount);
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Return the page table entry that maps the specified virtual page, for
+     * the kernel to read or write the page on this process's behalf. Marks
+     * the page used, and dirty if <i>writing</i>.
+     *
+     * @param	vpn	the virtual page to access.
+     * @param	writing	<tt>true</tt> if the page will be written.
+     * @return	the entry mapping the page, or <tt>null</tt> if the page cannot
+     *		be accessed.
+     */
+    protected TranslationEntry translatePage(int vpn, boolean writing) {
+	if (vpn >= pageTable.length)
+	    return null;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (writing && isCopyOnWrite(vpn) && !copyPage(vpn))
+	    return null;
+	if (entry != null && !entry.valid && isMapped(vpn) && !mapPage(vpn))
+	    return null;
+
+	if (entry == null || !entry.valid || (writing && entry.readOnly) ||
+	    entry.ppn < 0 || entry.ppn >= Machine.processor().getNumPhysPages())
+	    return null;
+
+	entry.used = true;
+	if (writing)
+	    entry.dirty = true;
 
-	return amount;
+	return entry;
+    }
+
+    /**
+     * Called when the kernel has finished accessing a page returned by
+     * <tt>translatePage()</tt>. The page must stay where it is until then.
+     *
+     * @param	vpn	the virtual page that was accessed.
+     */
+    protected void releasePage(int vpn) {
     }
 
     /**
@@ -213,6 +502,7 @@ public class UserProcess {
 	    Lib.debug(dbgProcess, "\tcoff load failed");
 	    return false;
 	}
+	this.executable = executable;
 
 	// make sure the sections are contiguous and start at page 0
 	numPages = 0;
@@ -282,13 +572,27 @@ public class UserProcess {
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-	if (numPages > Machine.processor().getNumPhysPages()) {
+	// read-only sections are shared, so only the rest need new frames
+	int privatePages = numPages;
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    if (coff.getSection(s).isReadOnly())
+		privatePages -= coff.getSection(s).getLength();
+	}
+
+	int[] frames = UserKernel.allocateFrames(privatePages);
+	if (frames == null) {
 	    coff.close();
 	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
 	    return false;
 	}
 
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+
 	// load sections
+	int nextFrame = 0;
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
 	    
@@ -297,9 +601,39 @@ public class UserProcess {
 
 	    for (int i=0; i<section.getLength(); i++) {
 		int vpn = section.getFirstVPN()+i;
+		TranslationEntry entry = pageTable[vpn];
 
-		// for now, just assume virtual addresses=physical addresses
-		section.loadPage(i, vpn);
+		if (section.isReadOnly()) {
+		    entry.ppn = UserKernel.acquireTextPage(executable, s,
+							   section, i);
+		    if (entry.ppn == -1) {
+			// give back the frames not yet in the page table too
+			while (nextFrame < frames.length)
+			    UserKernel.freeFrame(frames[nextFrame++]);
+			unloadSections();
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		    }
+		    entry.readOnly = true;
+		}
+		else {
+		    entry.ppn = frames[nextFrame++];
+		    section.loadPage(i, entry.ppn);
+		}
+		entry.valid = true;
+	    }
+	}
+
+	// the stack and argument pages may hold another process's data
+	Processor processor = Machine.processor();
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (!entry.valid) {
+		entry.ppn = frames[nextFrame++];
+		entry.valid = true;
+		processor.writeMemory(entry.ppn*pageSize, zeroPage, 0,
+				      pageSize);
 	    }
 	}
 	
@@ -310,8 +644,277 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry != null && entry.valid) {
+		if (entry.readOnly && !isCopyOnWrite(vpn))
+		    UserKernel.releaseTextPage(entry.ppn);
+		else if (!UserKernel.unshareFrame(entry.ppn))
+		    UserKernel.freeFrame(entry.ppn);
+		entry.valid = false;
+	    }
+	}
     }    
 
+    /**
+     * Give a child created by <tt>fork()</tt> a copy of this process's
+     * address space. Private pages are shared copy-on-write: both page
+     * tables map them read-only, and the first process to write one gets its
+     * own copy.
+     *
+     * @param	child	the new process, whose address space is empty.
+     * @return	<tt>true</tt> if the address space was copied.
+     */
+    protected boolean copySections(UserProcess child) {
+	if (copyOnWrite == null)
+	    copyOnWrite = new boolean[pageTable.length];
+
+	child.pageTable = new TranslationEntry[pageTable.length];
+	child.copyOnWrite = new boolean[pageTable.length];
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+
+	    // mapped files are not inherited
+	    boolean valid = entry.valid && !isMapped(vpn);
+
+	    if (valid) {
+		if (!entry.readOnly || copyOnWrite[vpn]) {
+		    UserKernel.shareFrame(entry.ppn);
+		    entry.readOnly = true;
+		    copyOnWrite[vpn] = true;
+		    child.copyOnWrite[vpn] = true;
+		}
+		else {
+		    UserKernel.shareTextPage(entry.ppn);
+		}
+	    }
+
+	    child.pageTable[vpn] =
+		new TranslationEntry(vpn, entry.ppn, valid, entry.readOnly,
+				     false, false);
+	}
+
+	return true;
+    }
+
+    /**
+     * Extend the page table to cover more virtual pages, which start out
+     * invalid.
+     *
+     * @param	length	the new number of entries in the page table.
+     */
+    protected void growPageTable(int length) {
+	TranslationEntry[] table = new TranslationEntry[length];
+	System.arraycopy(pageTable, 0, table, 0, pageTable.length);
+	for (int vpn=pageTable.length; vpn<length; vpn++)
+	    table[vpn] = new TranslationEntry(vpn, -1, false, false, false,
+					      false);
+	pageTable = table;
+
+	if (copyOnWrite != null)
+	    copyOnWrite = Arrays.copyOf(copyOnWrite, length);
+
+	// the processor holds on to the page table itself
+	if (!Machine.processor().hasTLB())
+	    Machine.processor().setPageTable(pageTable);
+    }
+
+    /**
+     * Test whether a page is mapped copy-on-write.
+     */
+    private boolean isCopyOnWrite(int vpn) {
+	return copyOnWrite != null && vpn >= 0 && vpn < copyOnWrite.length &&
+	    copyOnWrite[vpn];
+    }
+
+    /**
+     * Make a copy-on-write page writable, copying it first if another
+     * process still shares it.
+     *
+     * @param	vpn	the copy-on-write page.
+     * @return	<tt>true</tt> if the page is now writable, or <tt>false</tt>
+     *		if there was no free page to copy it to.
+     */
+    private boolean copyPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+
+	if (UserKernel.isFrameShared(entry.ppn)) {
+	    int[] frames = UserKernel.allocateFrames(1);
+	    if (frames == null)
+		return false;
+
+	    // copy before unsharing, so the original cannot be freed first
+	    Processor processor = Machine.processor();
+	    byte[] page = new byte[pageSize];
+	    processor.readMemory(entry.ppn*pageSize, page, 0, pageSize);
+	    processor.writeMemory(frames[0]*pageSize, page, 0, pageSize);
+
+	    if (UserKernel.unshareFrame(entry.ppn))
+		entry.ppn = frames[0];
+	    else
+		UserKernel.freeFrame(frames[0]);
+	}
+	else {
+	    UserKernel.unshareFrame(entry.ppn);
+	}
+
+	Lib.debug(dbgProcess, "\tcopied on write vpn " + vpn + " to ppn " +
+		  entry.ppn);
+
+	copyOnWrite[vpn] = false;
+	entry.readOnly = false;
+	return true;
+    }
+
+    /**
+     * Return the mapped file that covers a virtual page.
+     *
+     * @param	vpn	the virtual page.
+     * @return	the mapping, or <tt>null</tt> if no file is mapped there.
+     */
+    private Mapping getMapping(int vpn) {
+	// files are only mapped above the program
+	if (vpn < numPages)
+	    return null;
+
+	for (Mapping mapping : mappings.values()) {
+	    if (vpn >= mapping.firstVPN &&
+		vpn < mapping.firstVPN+mapping.numPages)
+		return mapping;
+	}
+
+	return null;
+    }
+
+    /**
+     * Test whether a virtual page belongs to a mapped file.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page is part of a mapped file.
+     */
+    protected boolean isMapped(int vpn) {
+	return getMapping(vpn) != null;
+    }
+
+    /**
+     * Fill a physical page with a page of a mapped file. The part of the
+     * last page past the end of the file is zeroed.
+     *
+     * @param	vpn	the virtual page, which must be mapped.
+     * @param	ppn	the physical page to fill.
+     */
+    protected void readMappedPage(int vpn, int ppn) {
+	Mapping mapping = getMapping(vpn);
+	int offset = (vpn-mapping.firstVPN)*pageSize;
+	int amount = Math.min(pageSize, mapping.length-offset);
+
+	byte[] page = new byte[pageSize];
+	if (mapping.file.read(offset, page, 0, amount) < amount)
+	    Lib.debug(dbgProcess, "\tshort read of mapped vpn " + vpn);
+
+	Machine.processor().writeMemory(ppn*pageSize, page, 0, pageSize);
+    }
+
+    /**
+     * Write a page of a mapped file back to the file. Only the part of the
+     * page within the file is written, so the file never grows.
+     *
+     * @param	vpn	the virtual page, which must be mapped.
+     * @param	ppn	the physical page holding it.
+     */
+    protected void writeMappedPage(int vpn, int ppn) {
+	Mapping mapping = getMapping(vpn);
+	int offset = (vpn-mapping.firstVPN)*pageSize;
+	int amount = Math.min(pageSize, mapping.length-offset);
+
+	byte[] page = new byte[amount];
+	Machine.processor().readMemory(ppn*pageSize, page, 0, amount);
+
+	if (mapping.file.write(offset, page, 0, amount) < amount)
+	    Lib.debug(dbgProcess, "\tshort write of mapped vpn " + vpn);
+    }
+
+    /**
+     * Give a page of a mapped file a physical page on its first access.
+     *
+     * @param	vpn	the mapped virtual page.
+     * @return	<tt>true</tt> if a physical page was free.
+     */
+    private boolean mapPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid)
+	    return true;
+
+	int[] frames = UserKernel.allocateFrames(1);
+	if (frames == null)
+	    return false;
+
+	readMappedPage(vpn, frames[0]);
+
+	Lib.debug(dbgProcess, "\tmapped in vpn " + vpn + " at ppn " +
+		  frames[0]);
+
+	entry.ppn = frames[0];
+	entry.readOnly = false;
+	entry.used = false;
+	entry.dirty = false;
+	entry.valid = true;
+	return true;
+    }
+
+    /**
+     * Remove a page of a mapped file from memory, writing it back to the
+     * file if it is dirty.
+     *
+     * @param	vpn	the mapped virtual page.
+     */
+    protected void unmapPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	if (!entry.valid)
+	    return;
+
+	if (entry.dirty)
+	    writeMappedPage(vpn, entry.ppn);
+
+	UserKernel.freeFrame(entry.ppn);
+	entry.valid = false;
+    }
+
+    /**
+     * Remove the mapping of an open file, writing back its dirty pages.
+     *
+     * @param	fd	the file descriptor of the mapped file.
+     */
+    private void unmap(int fd) {
+	Mapping mapping = mappings.get(fd);
+
+	for (int i=0; i<mapping.numPages; i++)
+	    unmapPage(mapping.firstVPN+i);
+
+	mappings.remove(fd);
+    }
+
+    /**
+     * An open file mapped into a range of virtual pages.
+     */
+    private static class Mapping {
+	Mapping(OpenFile file, int firstVPN, int numPages, int length) {
+	    this.file = file;
+	    this.firstVPN = firstVPN;
+	    this.numPages = numPages;
+	    this.length = length;
+	}
+
+	OpenFile file;
+	/** The first virtual page of the mapping. */
+	int firstVPN;
+	/** The number of virtual pages the mapping covers. */
+	int numPages;
+	/** The length of the file when it was mapped. */
+	int length;
+    }
+
     /**
      * Initialize the processor's registers in preparation for running the
      * program loaded into this process. Set the PC register to point at the
@@ -322,8 +925,15 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a forked child continues from its parent's fork() call
+	if (forkRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkRegisters[i]);
+	    return;
+	}
+
 	// by default, everything's 0
-	for (int i=0; i<processor.numUserRegisters; i++)
+	for (int i=0; i<Processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
 
 	// initialize PC and SP according
@@ -339,14 +949,329 @@ public class UserProcess {
      * Handle the halt() system call. 
      */
     private int handleHalt() {
+	if (pid != UserKernel.rootPID)
+	    return 0;
 
-	Machine.halt();
+	Kernel.kernel.terminate();
 	
 	Lib.assertNotReached("Machine.halt() did not halt machine!");
 	return 0;
     }
 
 
+    /**
+     * Handle the exit() system call.
+     */
+    private int handleExit(int status) {
+	exit(status, true);
+
+	Lib.assertNotReached();
+	return 0;
+    }
+
+    /**
+     * Handle the exec() system call.
+     */
+    private int handleExec(int fileAddr, int argc, int argvAddr) {
+	String name = readVirtualMemoryString(fileAddr, maxNameLength);
+	if (name == null || !name.endsWith(".coff"))
+	    return -1;
+
+	// the arguments must fit in one page, pointers included
+	if (argc < 0 || argc > pageSize/4)
+	    return -1;
+
+	byte[] pointers = new byte[argc*4];
+	if (readVirtualMemory(argvAddr, pointers) != pointers.length)
+	    return -1;
+
+	String[] args = new String[argc];
+	for (int i=0; i<argc; i++) {
+	    args[i] = readVirtualMemoryString(Lib.bytesToInt(pointers, i*4),
+					      pageSize);
+	    if (args[i] == null)
+		return -1;
+	}
+
+	UserProcess child = newUserProcess();
+	if (!child.execute(name, args)) {
+	    child.closeFiles();
+	    return -1;
+	}
+
+	children.put(child.pid, child);
+	return child.pid;
+    }
+
+    /**
+     * Handle the fork() system call. The child gets a copy-on-write copy of
+     * this process's memory and shares its open files, and returns 0 from
+     * the call.
+     */
+    private int handleFork() {
+	UserProcess child = newUserProcess();
+	if (!copySections(child)) {
+	    child.closeFiles();
+	    return -1;
+	}
+
+	// the child's own console descriptors are replaced by ours
+	child.closeFiles();
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    if (fileTable[fd] != null) {
+		UserKernel.shareFile(fileTable[fd]);
+		child.fileTable[fd] = fileTable[fd];
+	    }
+	}
+
+	UserKernel.shareFile(executable);
+	child.coff = coff;
+	child.executable = executable;
+	child.numPages = numPages;
+
+	// resume the child just after the syscall, returning 0
+	Processor processor = Machine.processor();
+	child.forkRegisters = new int[Processor.numUserRegisters];
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    child.forkRegisters[i] = processor.readRegister(i);
+	child.forkRegisters[Processor.regV0] = 0;
+	child.forkRegisters[Processor.regPC] =
+	    child.forkRegisters[Processor.regNextPC];
+	child.forkRegisters[Processor.regNextPC] += 4;
+
+	child.pid = UserKernel.addProcess(child);
+	new UThread(child).setName(KThread.currentThread().getName()).fork();
+
+	children.put(child.pid, child);
+	return child.pid;
+    }
+
+    /**
+     * Handle the join() system call.
+     */
+    private int handleJoin(int pid, int statusAddr) {
+	UserProcess child = children.get(pid);
+	if (child == null || !isAccessible(statusAddr, 4, true))
+	    return -1;
+
+	child.finished.P();
+	children.remove(pid);
+
+	if (!child.exitedNormally)
+	    return 0;
+
+	writeVirtualMemory(statusAddr, Lib.bytesFromInt(child.exitStatus));
+	return 1;
+    }
+
+    /**
+     * Terminate this process, which must be the current process. Closes its
+     * files, releases its memory, disowns its children, and wakes its
+     * parent if it is waiting in <tt>join()</tt>. The kernel terminates
+     * when the last process exits. Never returns.
+     *
+     * @param	status		the exit status to report to the parent.
+     * @param	normal		<tt>false</tt> if the process is being killed
+     *				because of an unhandled exception.
+     */
+    protected void exit(int status, boolean normal) {
+	Lib.debug(dbgProcess, "process " + pid + " exiting with status " +
+		  status + (normal ? "" : " (abnormal)"));
+
+	closeFiles();
+	unloadSections();
+	if (UserKernel.releaseFile(executable))
+	    coff.close();
+
+	// orphans cannot be joined, so need not be remembered
+	children.clear();
+
+	exitStatus = status;
+	exitedNormally = normal;
+	finished.V();
+
+	if (UserKernel.removeProcess(pid))
+	    Kernel.kernel.terminate();
+
+	KThread.finish();
+    }
+
+    /**
+     * Handle the creat() and open() system calls.
+     *
+     * @param	nameAddr	the virtual address of the file name.
+     * @param	create		<tt>true</tt> to create the file if it does
+     *				not exist.
+     * @return	the new file descriptor, or -1 on error.
+     */
+    private int handleOpen(int nameAddr, boolean create) {
+	String name = readVirtualMemoryString(nameAddr, maxNameLength);
+	if (name == null)
+	    return -1;
+
+	int fd = freeDescriptor();
+	if (fd == -1)
+	    return -1;
+
+	OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+	if (file == null)
+	    return -1;
+
+	// creat() truncates, so a cached executable would now be stale
+	if (create)
+	    UserKernel.forgetText(name);
+
+	fileTable[fd] = file;
+	return fd;
+    }
+
+    /**
+     * Handle the read() system call.
+     */
+    private int handleRead(int fd, int vaddr, int count) {
+	OpenFile file = getFile(fd);
+	if (file == null || mappings.containsKey(fd) || count < 0 ||
+	    !isAccessible(vaddr, count, true))
+	    return -1;
+
+	return fileTransfer(file, vaddr, count, true);
+    }
+
+    /**
+     * Handle the write() system call.
+     */
+    private int handleWrite(int fd, int vaddr, int count) {
+	OpenFile file = getFile(fd);
+	if (file == null || mappings.containsKey(fd) || count < 0 ||
+	    !isAccessible(vaddr, count, false))
+	    return -1;
+
+	return fileTransfer(file, vaddr, count, false);
+    }
+
+    /**
+     * Handle the close() system call.
+     */
+    private int handleClose(int fd) {
+	if (getFile(fd) == null)
+	    return -1;
+
+	closeDescriptor(fd);
+	return 0;
+    }
+
+    /**
+     * Handle the mmap() system call.
+     */
+    private int handleMmap(int fd, int vaddr) {
+	OpenFile file = getFile(fd);
+	if (file == null || mappings.containsKey(fd) || vaddr < 0 ||
+	    Processor.offsetFromAddress(vaddr) != 0)
+	    return -1;
+
+	int length = file.length();
+	if (length < 0)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+	int count = Lib.divRoundUp(length, pageSize);
+
+	// the map must lie above the program, and clear of other maps
+	if (firstVPN < numPages || firstVPN+count > maxMappedPages)
+	    return -1;
+	for (Mapping other : mappings.values()) {
+	    if (firstVPN < other.firstVPN+other.numPages &&
+		other.firstVPN < firstVPN+count)
+		return -1;
+	}
+
+	if (firstVPN+count > pageTable.length)
+	    growPageTable(firstVPN+count);
+
+	mappings.put(fd, new Mapping(file, firstVPN, count, length));
+	return length;
+    }
+
+    /**
+     * Handle the munmap() system call.
+     */
+    private int handleMunmap(int vaddr) {
+	if (vaddr < 0 || Processor.offsetFromAddress(vaddr) != 0)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+	for (int fd : mappings.keySet()) {
+	    if (mappings.get(fd).firstVPN == firstVPN) {
+		unmap(fd);
+		return 0;
+	    }
+	}
+
+	return -1;
+    }
+
+    /**
+     * Handle the unlink() system call.
+     */
+    private int handleUnlink(int nameAddr) {
+	String name = readVirtualMemoryString(nameAddr, maxNameLength);
+	if (name == null)
+	    return -1;
+
+	UserKernel.forgetText(name);
+	return ThreadedKernel.fileSystem.remove(name) ? 0 : -1;
+    }
+
+    /**
+     * Return the file referred to by a file descriptor.
+     *
+     * @param	fd	the file descriptor.
+     * @return	the open file, or <tt>null</tt> if <i>fd</i> is not in use.
+     */
+    protected OpenFile getFile(int fd) {
+	if (fd < 0 || fd >= fileTable.length)
+	    return null;
+
+	return fileTable[fd];
+    }
+
+    /**
+     * Return the lowest unused file descriptor, or -1 if there is none.
+     */
+    protected int freeDescriptor() {
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    if (fileTable[fd] == null)
+		return fd;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Close a file descriptor that is in use, first unmapping its file if it
+     * is mapped.
+     *
+     * @param	fd	the file descriptor.
+     */
+    protected void closeDescriptor(int fd) {
+	if (mappings.containsKey(fd))
+	    unmap(fd);
+
+	if (UserKernel.releaseFile(fileTable[fd]))
+	    fileTable[fd].close();
+	fileTable[fd] = null;
+    }
+
+    /**
+     * Close every open file descriptor.
+     */
+    protected void closeFiles() {
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    if (fileTable[fd] != null)
+		closeDescriptor(fd);
+	}
+    }
+
     private static final int
         syscallHalt = 0,
 	syscallExit = 1,
@@ -357,7 +1282,10 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallMmap = 10,
+	syscallFork = 13,
+	syscallMunmap = 14;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -378,6 +1306,9 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  munmap(char *address);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -391,11 +1322,34 @@ public class UserProcess {
 	switch (syscall) {
 	case syscallHalt:
 	    return handleHalt();
-
+	case syscallExit:
+	    return handleExit(a0);
+	case syscallExec:
+	    return handleExec(a0, a1, a2);
+	case syscallJoin:
+	    return handleJoin(a0, a1);
+	case syscallCreate:
+	    return handleOpen(a0, true);
+	case syscallOpen:
+	    return handleOpen(a0, false);
+	case syscallRead:
+	    return handleRead(a0, a1, a2);
+	case syscallWrite:
+	    return handleWrite(a0, a1, a2);
+	case syscallClose:
+	    return handleClose(a0);
+	case syscallUnlink:
+	    return handleUnlink(a0);
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+	case syscallFork:
+	    return handleFork();
+	case syscallMunmap:
+	    return handleMunmap(a0);
 
 	default:
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
-	    Lib.assertNotReached("Unknown system call!");
+	    exit(-1, false);
 	}
 	return 0;
     }
@@ -422,19 +1376,62 @@ public class UserProcess {
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
-				       
+
+	case Processor.exceptionPageFault:
+	case Processor.exceptionReadOnly:
+	    int vpn = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+	    if (!handleFault(cause, vpn)) {
+		// the process made a bad access, or no page was free
+		Lib.debug(dbgProcess, "Unhandled fault: " +
+			  Processor.exceptionNames[cause]);
+		exit(-1, false);
+	    }
+	    break;
+
 	default:
 	    Lib.debug(dbgProcess, "Unexpected exception: " +
 		      Processor.exceptionNames[cause]);
-	    Lib.assertNotReached("Unexpected exception");
+	    exit(-1, false);
 	}
     }
 
+    /**
+     * Handle a page fault or read-only exception that is part of normal
+     * operation: the first access to a page of a mapped file, or a write to
+     * a copy-on-write page.
+     *
+     * @param	cause	the exception.
+     * @param	vpn	the virtual page that was accessed.
+     * @return	<tt>true</tt> if the access can be retried.
+     */
+    private boolean handleFault(int cause, int vpn) {
+	if (cause == Processor.exceptionReadOnly)
+	    return isCopyOnWrite(vpn) && copyPage(vpn);
+	else
+	    return isMapped(vpn) && mapPage(vpn);
+    }
+
     /** The program being run by this process. */
     protected Coff coff;
+    /** The file <tt>coff</tt> was loaded from, which it closes. */
+    protected OpenFile executable;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
+    /** Which pages are shared copy-on-write, or <tt>null</tt> if none. */
+    protected boolean[] copyOnWrite;
+    /** The files mapped into memory, by file descriptor. */
+    private HashMap<Integer, Mapping> mappings =
+	new HashMap<Integer, Mapping>();
+    /** The open file for each file descriptor, or <tt>null</tt>. */
+    protected OpenFile[] fileTable = new OpenFile[maxFileDescriptors];
+    /** This process's ID, assigned by <tt>execute()</tt>. */
+    protected int pid = -1;
+    /** The children that have not yet been joined, by process ID. */
+    protected HashMap<Integer, UserProcess> children =
+	new HashMap<Integer, UserProcess>();
+
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
@@ -443,7 +1440,27 @@ public class UserProcess {
     
     private int initialPC, initialSP;
     private int argc, argv;
+    /** The registers a forked child starts with, or <tt>null</tt>. */
+    private int[] forkRegisters;
+
+    /** Released once, when this process exits. */
+    private Semaphore finished = new Semaphore(0);
+    private int exitStatus;
+    private boolean exitedNormally;
 	
+    /** The number of file descriptors each process has. */
+    public static final int maxFileDescriptors = 16;
+    /** The longest file name, not counting the null terminator. */
+    public static final int maxNameLength = 256;
+    /** The end of the part of the address space files can be mapped in. */
+    public static final int maxMappedPages = 0x10000;
+    /** The file descriptors open on the console when a process starts. */
+    public static final int fdStandardInput = 0, fdStandardOutput = 1;
+
+    /** The most pages a transfer copies, and keeps pinned, in one run. */
+    private static final int maxRunPages = 4;
+
     private static final int pageSize = Processor.pageSize;
+    private static final byte[] zeroPage = new byte[pageSize];
     private static final char dbgProcess = 'a';
 }
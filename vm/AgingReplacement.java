@@ -0,0 +1,69 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * An approximation of least-recently-used replacement by aging. Each frame
+ * has an 8-bit counter. Whenever a victim is needed, every counter is
+ * shifted right with the frame's used bit shifted in at the top, and the
+ * used bits are cleared; the frame with the smallest counter, which has gone
+ * the longest without being used, is evicted. Among equally old pages a
+ * clean one is preferred.
+ *
+ * <p>
+ * Counters age at each eviction rather than at each timer interrupt, so they
+ * measure time in evictions.
+ */
+public class AgingReplacement extends PageReplacement {
+    /**
+     * Allocate a new aging policy.
+     */
+    public AgingReplacement() {
+	super();
+
+	ages = new int[numPhysPages];
+    }
+
+    public int chooseVictim() {
+	int victim = -1;
+	boolean victimDirty = false;
+
+	for (int i=0; i<numPhysPages; i++) {
+	    // start where the last search stopped, so ties rotate
+	    int ppn = (start+i) % numPhysPages;
+	    numScanned++;
+
+	    if (!VMKernel.isEvictable(ppn))
+		continue;
+
+	    TranslationEntry entry = VMKernel.getFrameEntry(ppn);
+	    ages[ppn] = (ages[ppn] >>> 1) | (entry.used ? topBit : 0);
+	    entry.used = false;
+
+	    if (victim == -1 || ages[ppn] < ages[victim] ||
+		(ages[ppn] == ages[victim] && victimDirty && !entry.dirty)) {
+		victim = ppn;
+		victimDirty = entry.dirty;
+	    }
+	}
+
+	if (victim != -1)
+	    start = (victim+1) % numPhysPages;
+
+	return victim;
+    }
+
+    public void pageLoaded(int ppn) {
+	// a page is loaded because it is about to be used
+	ages[ppn] = topBit;
+    }
+
+    private static final int topBit = 0x80;
+
+    private int start = 0;
+    /** The age counter of each frame. */
+    private int[] ages;
+}
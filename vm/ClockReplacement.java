@@ -0,0 +1,42 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The clock algorithm. A hand sweeps around physical memory, clearing the
+ * used bit of each frame it passes, and stops at the first frame whose used
+ * bit was already clear.
+ */
+public class ClockReplacement extends PageReplacement {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockReplacement() {
+	super();
+    }
+
+    public int chooseVictim() {
+	// two turns are enough to clear every used bit and come back round
+	for (int i=0; i<2*numPhysPages; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPhysPages;
+	    numScanned++;
+
+	    if (!VMKernel.isEvictable(ppn))
+		continue;
+
+	    TranslationEntry entry = VMKernel.getFrameEntry(ppn);
+	    if (!entry.used)
+		return ppn;
+
+	    entry.used = false;
+	}
+
+	return -1;
+    }
+
+    private int hand = 0;
+}
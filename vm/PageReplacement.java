@@ -0,0 +1,82 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Chooses which page to evict when a page fault finds no free physical page.
+ * The policy is selected by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacement</tt>.
+ *
+ * <p>
+ * Policies see physical memory through the core map kept by
+ * <tt>VMKernel</tt>. A frame can only be evicted if
+ * <tt>VMKernel.isEvictable()</tt> is true of it, and the page table entry
+ * returned by <tt>VMKernel.getFrameEntry()</tt> holds its used and dirty
+ * bits, which are up to date with the TLB whenever
+ * <tt>chooseVictim()</tt> is called. A policy may clear the used bit.
+ *
+ * @see	nachos.vm.VMKernel
+ */
+public abstract class PageReplacement {
+    /**
+     * Allocate a new page replacement policy.
+     */
+    public PageReplacement() {
+	numPhysPages = Machine.processor().getNumPhysPages();
+    }
+
+    /**
+     * Choose a frame to evict.
+     *
+     * @return	the physical page number of an evictable frame, or -1 if
+     *		there is none.
+     */
+    public abstract int chooseVictim();
+
+    /**
+     * Called when a frame is given a page that may later be evicted.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void pageLoaded(int ppn) {
+    }
+
+    /**
+     * Called when a frame's page is evicted or freed.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void pageFreed(int ppn) {
+    }
+
+    /**
+     * Record that a victim chosen by this policy was evicted.
+     *
+     * @param	dirty	<tt>true</tt> if the victim had to be written out.
+     */
+    void countEviction(boolean dirty) {
+	numEvictions++;
+	if (dirty)
+	    numDirtyEvictions++;
+    }
+
+    /**
+     * Print the counts kept by this policy.
+     */
+    public void print() {
+	System.out.println("Replacement: " + getClass().getName() +
+			   ", evictions " + numEvictions + " (dirty " +
+			   numDirtyEvictions + "), frames scanned " +
+			   numScanned);
+    }
+
+    /** The number of physical pages. */
+    protected int numPhysPages;
+    /** The number of frames examined while choosing victims. */
+    protected int numScanned = 0;
+
+    private int numEvictions = 0, numDirtyEvictions = 0;
+}
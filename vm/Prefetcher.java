@@ -0,0 +1,135 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Watches the pages one process faults on for sequential or fixed-stride
+ * streams, and decides how far ahead of a stream to prefetch.
+ *
+ * <p>
+ * A few streams are tracked at once, since a program sweeping several arrays
+ * interleaves their faults. A stream is confirmed once two steps in a row
+ * have the same stride. The prefetch depth grows by one each time a
+ * prefetched page is used, up to <tt>VMKernel.maxPrefetch</tt> pages, and
+ * halves each time one is evicted without having been used.
+ */
+public class Prefetcher {
+    /**
+     * Allocate a new prefetcher.
+     *
+     * @param	maxDepth	the most pages to prefetch at once.
+     */
+    public Prefetcher(int maxDepth) {
+	Lib.assertTrue(maxDepth >= 0);
+
+	this.maxDepth = maxDepth;
+	depth = Math.min(maxDepth, 2);
+
+	for (int i=0; i<numStreams; i++)
+	    lastVPNs[i] = -1;
+    }
+
+    /**
+     * Record that the process accessed a page for the first time since it
+     * was loaded, either by faulting on it or by using a prefetched page.
+     *
+     * @param	vpn	the virtual page accessed.
+     * @return	the stride of the confirmed stream <i>vpn</i> continues, or 0
+     *		if it does not continue one.
+     */
+    public int access(int vpn) {
+	if (maxDepth == 0)
+	    return 0;
+
+	clock++;
+
+	// continuing a confirmed stream
+	for (int i=0; i<numStreams; i++) {
+	    if (strides[i] != 0 && vpn == lastVPNs[i]+strides[i]) {
+		lastVPNs[i] = vpn;
+		lastAccess[i] = clock;
+		return strides[i];
+	    }
+	}
+
+	// a second step from a recent fault fixes a stream's stride
+	for (int i=0; i<numStreams; i++) {
+	    int stride = vpn - lastVPNs[i];
+	    if (lastVPNs[i] != -1 && stride != 0 &&
+		Math.abs(stride) <= maxStride) {
+		strides[i] = stride;
+		lastVPNs[i] = vpn;
+		lastAccess[i] = clock;
+		return 0;
+	    }
+	}
+
+	// otherwise start a new stream in place of the least recently used
+	int victim = 0;
+	for (int i=1; i<numStreams; i++) {
+	    if (lastAccess[i] < lastAccess[victim])
+		victim = i;
+	}
+	lastVPNs[victim] = vpn;
+	strides[victim] = 0;
+	lastAccess[victim] = clock;
+	return 0;
+    }
+
+    /**
+     * Return how many pages to prefetch along a stream.
+     *
+     * @return	the current prefetch depth.
+     */
+    public int getDepth() {
+	return depth;
+    }
+
+    /**
+     * Record that a prefetched page was used.
+     */
+    public void hit() {
+	numHits++;
+	depth = Math.min(depth+1, maxDepth);
+    }
+
+    /**
+     * Record that a prefetched page was evicted without being used.
+     */
+    public void wasted() {
+	numWasted++;
+	depth = Math.max(depth/2, 1);
+    }
+
+    /**
+     * Record that some pages were prefetched.
+     *
+     * @param	count	the number of pages.
+     */
+    public void prefetched(int count) {
+	numPrefetched += count;
+    }
+
+    /**
+     * Print the counts kept by all prefetchers.
+     */
+    public static void print() {
+	System.out.println("Prefetch: pages " + numPrefetched + ", used " +
+			   numHits + ", wasted " + numWasted);
+    }
+
+    private static final int numStreams = 4;
+    /** The largest stride, in pages, that is recognized. */
+    private static final int maxStride = 8;
+
+    private int maxDepth, depth;
+    private int[] lastVPNs = new int[numStreams];
+    private int[] strides = new int[numStreams];
+    private long[] lastAccess = new long[numStreams];
+    private long clock = 0;
+
+    private static int numPrefetched = 0, numHits = 0, numWasted = 0;
+}
@@ -0,0 +1,59 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.LinkedList;
+
+/**
+ * The second-chance algorithm. Frames are kept in the order their pages were
+ * loaded, and the oldest page is evicted unless it has been used since it
+ * was last considered, in which case its used bit is cleared and it moves to
+ * the back of the queue.
+ *
+ * <p>
+ * Unlike <tt>ClockReplacement</tt>, which visits frames in physical order,
+ * this considers pages strictly in load order.
+ */
+public class SecondChanceReplacement extends PageReplacement {
+    /**
+     * Allocate a new second-chance policy.
+     */
+    public SecondChanceReplacement() {
+	super();
+    }
+
+    public int chooseVictim() {
+	int tries = 2*queue.size();
+
+	for (int i=0; i<tries; i++) {
+	    int ppn = queue.removeFirst();
+	    numScanned++;
+
+	    if (VMKernel.isEvictable(ppn)) {
+		TranslationEntry entry = VMKernel.getFrameEntry(ppn);
+		if (!entry.used)
+		    return ppn;
+
+		entry.used = false;
+	    }
+
+	    queue.addLast(ppn);
+	}
+
+	return -1;
+    }
+
+    public void pageLoaded(int ppn) {
+	queue.addLast(ppn);
+    }
+
+    public void pageFreed(int ppn) {
+	queue.remove(Integer.valueOf(ppn));
+    }
+
+    /** The frames holding evictable pages, oldest first. */
+    private LinkedList<Integer> queue = new LinkedList<Integer>();
+}
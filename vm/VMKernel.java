@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -17,10 +20,34 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * Initialize this kernel.
+     * Initialize this kernel. Creates the swap file, which is named by
+     * <tt>VMKernel.swapFile</tt> and removed again when Nachos terminates,
+     * and the page replacement policy named by <tt>VMKernel.replacement</tt>.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	frameOwners = new VMProcess[numPhysPages];
+	frameVPNs = new int[numPhysPages];
+	framePins = new int[numPhysPages];
+
+	swapName = Config.getString("VMKernel.swapFile", "nachos.swp");
+	swapFile = fileSystem.open(swapName, true);
+	Lib.assertTrue(swapFile != null, "could not create swap file");
+
+	swapCluster = Config.getInteger("VMKernel.swapCluster", 8);
+	Lib.assertTrue(swapCluster > 0);
+	clusterBuffer = new byte[swapCluster*pageSize];
+
+	maxPrefetch = Config.getInteger("VMKernel.maxPrefetch", 8);
+	Lib.assertTrue(maxPrefetch >= 0);
+
+	pagingLock = new Lock();
+
+	replacement = (PageReplacement)
+	    Lib.constructObject(Config.getString("VMKernel.replacement",
+						 "nachos.vm.ClockReplacement"));
     }
 
     /**
@@ -41,9 +68,512 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (swapFile != null) {
+	    replacement.print();
+	    Prefetcher.print();
+	    System.out.println("Swap: pages in " + numSwapIns + ", pages out " +
+			       numSwapOuts + " in " + numSwapWrites +
+			       " writes");
+
+	    swapFile.close();
+	    fileSystem.remove(swapName);
+	}
+
 	super.terminate();
     }
 
+    /**
+     * Allocate an address space ID for a new process. When every other ID is
+     * in use, <tt>sharedASID</tt> is returned; processes sharing it must
+     * flush its TLB entries whenever they are switched in.
+     *
+     * @return	the address space ID to use.
+     */
+    public static int allocateASID() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int asid = sharedASID;
+	if (numFreeASIDs > 0)
+	    asid = freeASIDs[--numFreeASIDs];
+
+	Machine.interrupt().restore(intStatus);
+	return asid;
+    }
+
+    /**
+     * Release an address space ID, invalidating any TLB entries tagged with
+     * it so that the next process to use it does not see them.
+     *
+     * @param	asid	the address space ID to release.
+     */
+    public static void freeASID(int asid) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	flushTLB(asid);
+	if (asid != sharedASID) {
+	    asidOwners[asid] = null;
+	    freeASIDs[numFreeASIDs++] = asid;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Invalidate every TLB entry tagged with the specified address space ID,
+     * first saving their used and dirty bits in the page table of the
+     * process that owns the ID.
+     *
+     * @param	asid	the address space ID whose entries to invalidate.
+     */
+    public static void flushTLB(int asid) {
+	Processor processor = Machine.processor();
+	TranslationEntry entry = new TranslationEntry();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    if (processor.getTLBEntryASID(i) == asid)
+		invalidateTLBEntry(i, entry);
+	}
+    }
+
+    /**
+     * Record that the specified process is now using an address space ID,
+     * so that the TLB entries tagged with that ID are written back to its
+     * page table.
+     *
+     * @param	asid	the address space ID.
+     * @param	process	the process using it.
+     */
+    public static void setASIDOwner(int asid, VMProcess process) {
+	asidOwners[asid] = process;
+    }
+
+    /**
+     * Replace a TLB entry in the current address space's set for
+     * <tt>entry.vpn</tt>, choosing an invalid entry if there is one, and
+     * otherwise evicting the entries of each set in turn.
+     *
+     * @param	entry	the new TLB entry.
+     */
+    public static void fillTLB(TranslationEntry entry) {
+	Processor processor = Machine.processor();
+	int set = processor.getTLBSet(entry.vpn);
+	int associativity = processor.getTLBAssociativity();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int victim = -1;
+	for (int i=set; i<set+associativity; i++) {
+	    processor.readTLBEntry(i, tlbEntry);
+	    if (!tlbEntry.valid) {
+		victim = i;
+		break;
+	    }
+	}
+	if (victim == -1) {
+	    victim = set + nextTLBVictim;
+	    nextTLBVictim = (nextTLBVictim+1) % associativity;
+	    invalidateTLBEntry(victim, tlbEntry);
+	}
+
+	processor.writeTLBEntry(victim, entry);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Invalidate a TLB entry, saving its used and dirty bits in the page
+     * table of the process that owns its address space ID.
+     *
+     * @param	number	the index into the TLB.
+     * @param	entry	scratch space for the TLB entry.
+     */
+    private static void invalidateTLBEntry(int number, TranslationEntry entry) {
+	Processor processor = Machine.processor();
+
+	processor.readTLBEntry(number, entry);
+	if (!entry.valid)
+	    return;
+
+	VMProcess owner = asidOwners[processor.getTLBEntryASID(number)];
+	if (owner != null)
+	    owner.saveTLBBits(entry);
+
+	entry.valid = false;
+	processor.writeTLBEntry(number, entry);
+    }
+
+    /**
+     * Invalidate the TLB entry, if any, that translates a page of the
+     * specified process, saving its used and dirty bits in the process's
+     * page table.
+     *
+     * @param	process	the process.
+     * @param	vpn	the virtual page.
+     */
+    static void invalidateTLB(VMProcess process, int vpn) {
+	// a process only has TLB entries while it owns its address space ID
+	if (asidOwners[process.asid] != process)
+	    return;
+
+	Processor processor = Machine.processor();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    if (processor.getTLBEntryASID(i) == process.asid) {
+		processor.readTLBEntry(i, tlbEntry);
+		if (tlbEntry.valid && tlbEntry.vpn == vpn)
+		    invalidateTLBEntry(i, tlbEntry);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Allocate a physical page for a process to fault a page into, evicting
+     * another page if none is free. The caller must hold
+     * <tt>pagingLock</tt>.
+     *
+     * @param	owner	the process the page is for.
+     * @param	vpn	the virtual page it will hold.
+     * @return	the physical page number, or -1 if every page is in use and
+     *		none can be evicted.
+     */
+    static int allocateFrame(VMProcess owner, int vpn) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	int ppn;
+	int[] frames = allocateFrames(1);
+	if (frames != null)
+	    ppn = frames[0];
+	else if ((ppn = evictFrame()) == -1)
+	    return -1;
+
+	frameOwners[ppn] = owner;
+	frameVPNs[ppn] = vpn;
+	replacement.pageLoaded(ppn);
+	return ppn;
+    }
+
+    /**
+     * Evict a page and put its physical page on the free list, for memory
+     * that is not allocated through <tt>allocateFrame()</tt>. The caller
+     * must hold <tt>pagingLock</tt>.
+     *
+     * @return	<tt>true</tt> if a page could be evicted.
+     */
+    static boolean reclaimFrame() {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	int ppn = evictFrame();
+	if (ppn == -1)
+	    return false;
+
+	freeFrame(ppn);
+	return true;
+    }
+
+    /**
+     * Return a physical page allocated by <tt>allocateFrame()</tt> to the
+     * free list.
+     *
+     * @param	ppn	the physical page.
+     */
+    static void releaseFrame(int ppn) {
+	Lib.assertTrue(framePins[ppn] == 0);
+
+	replacement.pageFreed(ppn);
+	frameOwners[ppn] = null;
+	freeFrame(ppn);
+    }
+
+    /**
+     * Keep a physical page from being evicted until it is unpinned. Pins
+     * nest.
+     *
+     * @param	ppn	the physical page.
+     */
+    static void pinFrame(int ppn) {
+	framePins[ppn]++;
+    }
+
+    /**
+     * Test whether a physical page is pinned.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the page cannot be evicted.
+     */
+    static boolean isPinned(int ppn) {
+	return framePins[ppn] > 0;
+    }
+
+    /**
+     * Undo one call to <tt>pinFrame()</tt>.
+     *
+     * @param	ppn	the physical page.
+     */
+    static void unpinFrame(int ppn) {
+	Lib.assertTrue(framePins[ppn] > 0);
+	framePins[ppn]--;
+    }
+
+    /**
+     * Choose a page to evict, and have its owner page it out.
+     *
+     * @return	the physical page that was freed, or -1 if no page can be
+     *		evicted.
+     */
+    private static int evictFrame() {
+	saveTLBBits();
+
+	int ppn = replacement.chooseVictim();
+	if (ppn == -1)
+	    return -1;
+
+	Lib.assertTrue(isEvictable(ppn));
+	Lib.debug(dbgVM, "\tevicting vpn " + frameVPNs[ppn] + " from ppn " +
+		  ppn);
+
+	replacement.pageFreed(ppn);
+	replacement.countEviction(frameOwners[ppn].pageOut(frameVPNs[ppn]));
+	frameOwners[ppn] = null;
+	return ppn;
+    }
+
+    /**
+     * Test whether a frame holds a page that can be evicted: a private page
+     * that is resident and not pinned.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the frame's page can be evicted.
+     */
+    static boolean isEvictable(int ppn) {
+	return frameOwners[ppn] != null && framePins[ppn] == 0 &&
+	    frameOwners[ppn].getEntry(frameVPNs[ppn]).valid;
+    }
+
+    /**
+     * Return the page table entry of the page a frame holds.
+     *
+     * @param	ppn	the physical page number, which must hold a private
+     *			page.
+     * @return	the page table entry that maps the frame.
+     */
+    static TranslationEntry getFrameEntry(int ppn) {
+	Lib.assertTrue(frameOwners[ppn] != null);
+
+	return frameOwners[ppn].getEntry(frameVPNs[ppn]);
+    }
+
+    /**
+     * Move the used and dirty bits of every TLB entry into the page tables,
+     * clearing them in the TLB, so that the page tables show every access
+     * since the last time.
+     */
+    private static void saveTLBBits() {
+	Processor processor = Machine.processor();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int currentASID = processor.getASID();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    processor.readTLBEntry(i, tlbEntry);
+	    if (!tlbEntry.valid || !(tlbEntry.used || tlbEntry.dirty))
+		continue;
+
+	    int asid = processor.getTLBEntryASID(i);
+	    if (asidOwners[asid] == null)
+		continue;
+
+	    asidOwners[asid].saveTLBBits(tlbEntry);
+	    tlbEntry.used = tlbEntry.dirty = false;
+
+	    // rewriting the entry tags it with the current address space ID
+	    if (processor.getASID() != asid)
+		processor.setASID(asid);
+	    processor.writeTLBEntry(i, tlbEntry);
+	}
+	if (processor.getASID() != currentASID)
+	    processor.setASID(currentASID);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Allocate a run of contiguous slots in the swap file.
+     *
+     * @param	count	the number of slots.
+     * @return	the first slot of the run.
+     */
+    static int allocateSwap(int count) {
+	int slot = swapSlots.nextClearBit(0);
+	while (true) {
+	    int used = swapSlots.nextSetBit(slot);
+	    if (used == -1 || used-slot >= count)
+		break;
+	    slot = swapSlots.nextClearBit(used);
+	}
+
+	swapSlots.set(slot, slot+count);
+	return slot;
+    }
+
+    /**
+     * Free a slot in the swap file.
+     *
+     * @param	slot	the slot to free.
+     */
+    static void freeSwap(int slot) {
+	Lib.assertTrue(swapSlots.get(slot));
+	swapSlots.clear(slot);
+    }
+
+    /**
+     * Read a page from the swap file into physical memory.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to read into.
+     * @return	<tt>true</tt> if the page was read.
+     */
+    static boolean readSwap(int slot, int ppn) {
+	Processor processor = Machine.processor();
+	ByteBuffer memory = processor.getMemoryBuffer();
+
+	int amount;
+	if (memory.hasArray()) {
+	    amount = swapFile.read(slot*pageSize, memory.array(), ppn*pageSize,
+				   pageSize);
+	    processor.invalidateMemory(ppn*pageSize, amount);
+	}
+	else {
+	    amount = swapFile.read(slot*pageSize, clusterBuffer, 0, pageSize);
+	    if (amount == pageSize)
+		processor.writeMemory(ppn*pageSize, clusterBuffer, 0, pageSize);
+	}
+
+	numSwapIns++;
+	return amount == pageSize;
+    }
+
+    /**
+     * Read pages from consecutive slots of the swap file into physical
+     * memory, with one read from the file. At most
+     * <tt>getSwapCluster()</tt> pages can be read at once.
+     *
+     * @param	slot	the first slot to read.
+     * @param	ppns	the physical pages to read into.
+     * @param	offset	the index in <i>ppns</i> of the first physical page.
+     * @param	count	the number of pages to read.
+     * @return	<tt>true</tt> if the pages were read.
+     */
+    static boolean readSwap(int slot, int[] ppns, int offset, int count) {
+	Lib.assertTrue(count > 0 && count <= swapCluster);
+
+	if (count == 1)
+	    return readSwap(slot, ppns[offset]);
+
+	int amount = swapFile.read(slot*pageSize, clusterBuffer, 0,
+				   count*pageSize);
+	if (amount != count*pageSize)
+	    return false;
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<count; i++)
+	    processor.writeMemory(ppns[offset+i]*pageSize, clusterBuffer,
+				  i*pageSize, pageSize);
+
+	numSwapIns += count;
+	return true;
+    }
+
+    /**
+     * Write some pages to consecutive slots of the swap file, with one
+     * write to the file. At most <tt>getSwapCluster()</tt> pages can be
+     * written at once.
+     *
+     * @param	slot	the first slot to write.
+     * @param	ppns	the physical pages to write.
+     * @param	count	the number of pages to write.
+     * @return	<tt>true</tt> if the pages were written.
+     */
+    static boolean writeSwap(int slot, int[] ppns, int count) {
+	Lib.assertTrue(count > 0 && count <= swapCluster);
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<count; i++)
+	    processor.readMemory(ppns[i]*pageSize, clusterBuffer, i*pageSize,
+				 pageSize);
+
+	int amount = swapFile.write(slot*pageSize, clusterBuffer, 0,
+				    count*pageSize);
+
+	numSwapOuts += count;
+	numSwapWrites++;
+	return amount == count*pageSize;
+    }
+
+    /**
+     * Return the most pages to prefetch after a page fault.
+     *
+     * @return	the largest prefetch depth.
+     */
+    static int getMaxPrefetch() {
+	return maxPrefetch;
+    }
+
+    /**
+     * Return the largest number of pages written to the swap file at once.
+     *
+     * @return	the size of a cluster of pages.
+     */
+    static int getSwapCluster() {
+	return swapCluster;
+    }
+
+    /**
+     * Serializes page faults and evictions. Held while paging I/O is in
+     * progress, so that no page is faulted in while it is being paged out.
+     */
+    static Lock pagingLock;
+
+    /**
+     * The core map, an inverted page table: the process and virtual page
+     * each physical page holds, or <tt>null</tt> for a free or shared page.
+     */
+    private static VMProcess[] frameOwners;
+    private static int[] frameVPNs;
+    /** How many times each physical page is pinned. */
+    private static int[] framePins;
+    /** Chooses which page to evict. */
+    private static PageReplacement replacement;
+
+    private static OpenFile swapFile;
+    private static String swapName;
+    /** The slots of the swap file in use. */
+    private static BitSet swapSlots = new BitSet();
+    private static int swapCluster;
+    private static int maxPrefetch;
+    private static byte[] clusterBuffer;
+    private static int numSwapIns = 0, numSwapOuts = 0, numSwapWrites = 0;
+
+    private static final int pageSize = Processor.pageSize;
+
+    /** The address space ID shared when all others are in use. */
+    public static final int sharedASID = 0;
+
+    /** The process last using each address space ID. */
+    private static VMProcess[] asidOwners = new VMProcess[Processor.numASIDs];
+    private static int nextTLBVictim = 0;
+    private static TranslationEntry tlbEntry = new TranslationEntry();
+
+    private static int[] freeASIDs = new int[Processor.numASIDs];
+    private static int numFreeASIDs = 0;
+    static {
+	for (int asid=Processor.numASIDs-1; asid>sharedASID; asid--)
+	    freeASIDs[numFreeASIDs++] = asid;
+    }
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -26,10 +28,23 @@ public class VMProcess extends UserProcess {
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. The TLB entries of this process are
+     * tagged with its address space ID, so they need not be flushed unless
+     * that ID is shared.
      */
     public void restoreState() {
-	super.restoreState();
+	Processor processor = Machine.processor();
+
+	if (!processor.hasTLB()) {
+	    super.restoreState();
+	    return;
+	}
+
+	if (asid == VMKernel.sharedASID)
+	    VMKernel.flushTLB(asid);
+
+	VMKernel.setASIDOwner(asid, this);
+	processor.setASID(asid);
     }
 
     /**
@@ -39,14 +54,89 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	asid = VMKernel.allocateASID();
+
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+
+	// remember which section each page comes from; the rest are zeroed
+	pageSections = new int[numPages];
+	Arrays.fill(pageSections, -1);
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    for (int i=0; i<section.getLength(); i++)
+		pageSections[section.getFirstVPN()+i] = s;
+	}
+
+	swapSlots = new int[numPages];
+	Arrays.fill(swapSlots, -1);
+
+	prefetched = new boolean[numPages];
+	prefetcher = new Prefetcher(VMKernel.getMaxPrefetch());
+
+	return true;
+    }
+
+    /**
+     * Extend the page table, and the per-page state kept alongside it.
+     */
+    protected void growPageTable(int length) {
+	int oldLength = pageTable.length;
+	super.growPageTable(length);
+
+	pageSections = Arrays.copyOf(pageSections, length);
+	Arrays.fill(pageSections, oldLength, length, -1);
+
+	swapSlots = Arrays.copyOf(swapSlots, length);
+	Arrays.fill(swapSlots, oldLength, length, -1);
+
+	prefetched = Arrays.copyOf(prefetched, length);
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * A process that pages on demand cannot be forked: its pages may be in
+     * the swap file or not yet loaded, and each physical page has only one
+     * owner to evict it.
+     *
+     * @return	<tt>false</tt>.
+     */
+    protected boolean copySections(UserProcess child) {
+	return false;
+    }
+
+    /**
+     * Release any resources allocated by <tt>loadSections()</tt>, including
+     * this process's pages in the swap file.
      */
     protected void unloadSections() {
-	super.unloadSections();
+	VMKernel.pagingLock.acquire();
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry.valid) {
+		if (entry.readOnly)
+		    UserKernel.releaseTextPage(entry.ppn);
+		else
+		    VMKernel.releaseFrame(entry.ppn);
+		entry.valid = false;
+	    }
+
+	    if (prefetched != null && prefetched[vpn]) {
+		prefetched[vpn] = false;
+		prefetcher.wasted();
+	    }
+
+	    if (swapSlots != null && swapSlots[vpn] != -1) {
+		VMKernel.freeSwap(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+
+	VMKernel.pagingLock.release();
+
+	VMKernel.freeASID(asid);
     }    
 
     /**
@@ -61,13 +151,434 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	case Processor.exceptionPageFault:
+	    int vpn =
+		Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+	    if (vpn >= numPages && !isMapped(vpn)) {
+		super.handleException(cause);
+		break;
+	    }
+
+	    if (!handlePageFault(vpn, cause == Processor.exceptionTLBMiss)) {
+		Lib.debug(dbgVM, "\tno physical page for vpn " + vpn);
+		exit(-1, false);
+	    }
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
+
+    /**
+     * Make a page of this process resident, and load its translation into
+     * the TLB.
+     *
+     * @param	vpn	the virtual page the process accessed.
+     * @param	fillTLB	<tt>true</tt> if the TLB missed.
+     * @return	<tt>false</tt> if no physical page was available.
+     */
+    private boolean handlePageFault(int vpn, boolean fillTLB) {
+	// a resident page only needs its TLB entry, and cannot be evicted
+	// before the entry is written
+	if (pageTable[vpn].valid && !prefetched[vpn]) {
+	    if (fillTLB)
+		VMKernel.fillTLB(pageTable[vpn]);
+	    return true;
+	}
+
+	VMKernel.pagingLock.acquire();
+
+	boolean resident = true;
+	if (pageTable[vpn].valid) {
+	    if (prefetched[vpn]) {
+		usePrefetched(vpn);
+		prefetchAfter(vpn);
+	    }
+	}
+	else if (faultIn(vpn)) {
+	    // without a TLB, the processor counted the fault when it raised it
+	    if (fillTLB)
+		Machine.processor().countPageFault();
+	    prefetchAfter(vpn);
+	}
+	else {
+	    resident = false;
+	}
+
+	if (resident && fillTLB)
+	    VMKernel.fillTLB(pageTable[vpn]);
+
+	VMKernel.pagingLock.release();
+	return resident;
+    }
+
+    /**
+     * Fault in pages that the kernel accesses on this process's behalf, as
+     * well as those the process accesses itself. Each page returned is
+     * pinned in memory until <tt>releasePage()</tt>.
+     */
+    protected TranslationEntry translatePage(int vpn, boolean writing) {
+	if (vpn < 0 || (vpn >= numPages && !isMapped(vpn)))
+	    return null;
+
+	TranslationEntry entry;
+
+	if (pageTable[vpn].valid) {
+	    if (prefetched[vpn])
+		usePrefetched(vpn);
+
+	    entry = super.translatePage(vpn, writing);
+	    if (entry != null)
+		VMKernel.pinFrame(entry.ppn);
+	    return entry;
+	}
+
+	VMKernel.pagingLock.acquire();
+
+	// the processor never sees faults on kernel accesses, so count them
+	if (!pageTable[vpn].valid && faultIn(vpn))
+	    Machine.processor().countPageFault();
+
+	entry = null;
+	if (pageTable[vpn].valid) {
+	    entry = super.translatePage(vpn, writing);
+	    if (entry != null)
+		VMKernel.pinFrame(entry.ppn);
+	}
+
+	VMKernel.pagingLock.release();
+	return entry;
+    }
+
+    /**
+     * Unpin a page returned by <tt>translatePage()</tt>.
+     */
+    protected void releasePage(int vpn) {
+	VMKernel.unpinFrame(pageTable[vpn].ppn);
+    }
+
+    /**
+     * Give a virtual page a physical page, reading it back from the swap
+     * file if it was paged out dirty, loading it from the executable if it
+     * is part of a section or from a file mapped over it, and zero-filling
+     * it otherwise. Pages of
+     * read-only sections are shared with other processes running the same
+     * executable, and are never paged out. The caller must hold
+     * <tt>VMKernel.pagingLock</tt>.
+     *
+     * @param	vpn	the virtual page to fault in.
+     * @return	<tt>true</tt> if a physical page was available.
+     */
+    protected boolean faultIn(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(!entry.valid);
+
+	int s = pageSections[vpn];
+	CoffSection section = (s == -1) ? null : coff.getSection(s);
+
+	if (section != null && section.isReadOnly()) {
+	    while ((entry.ppn =
+		    UserKernel.acquireTextPage(executable, s, section,
+					       vpn-section.getFirstVPN())) == -1) {
+		if (!VMKernel.reclaimFrame())
+		    return false;
+	    }
+	    entry.readOnly = true;
+	}
+	else {
+	    entry.ppn = VMKernel.allocateFrame(this, vpn);
+	    if (entry.ppn == -1)
+		return false;
+
+	    loadPages(new int[] { vpn }, 1);
+	}
+
+	Lib.debug(dbgVM, "\tfaulted in vpn " + vpn + " at ppn " + entry.ppn);
+
+	entry.used = false;
+	entry.dirty = false;
+	entry.valid = true;
+	return true;
+    }
+
+    /**
+     * Fill private pages that have been given physical pages, reading each
+     * run of pages that are consecutive in the swap file or in one section
+     * of the executable with a single read. Pages of mapped files are read
+     * one at a time.
+     *
+     * @param	vpns	the virtual pages to fill, in order.
+     * @param	count	the number of pages.
+     */
+    private void loadPages(int[] vpns, int count) {
+	int[] ppns = new int[count];
+	for (int i=0; i<count; i++)
+	    ppns[i] = pageTable[vpns[i]].ppn;
+
+	for (int i=0, run; i<count; i+=run) {
+	    int vpn = vpns[i];
+	    int s = pageSections[vpn];
+	    run = 1;
+
+	    if (swapSlots[vpn] != -1) {
+		while (i+run < count && run < VMKernel.getSwapCluster() &&
+		       vpns[i+run] == vpn+run &&
+		       swapSlots[vpn+run] == swapSlots[vpn]+run)
+		    run++;
+
+		Lib.assertTrue(VMKernel.readSwap(swapSlots[vpn], ppns, i, run),
+			       "swap file read failed");
+	    }
+	    else if (s != -1) {
+		while (i+run < count && vpns[i+run] == vpn+run &&
+		       pageSections[vpn+run] == s && swapSlots[vpn+run] == -1)
+		    run++;
+
+		CoffSection section = coff.getSection(s);
+		section.loadPages(vpn-section.getFirstVPN(), ppns, i, run);
+	    }
+	    else if (isMapped(vpn)) {
+		readMappedPage(vpn, ppns[i]);
+	    }
+	    else {
+		Machine.processor().writeMemory(ppns[i]*pageSize, zeroPage, 0,
+						pageSize);
+	    }
+	}
+    }
+
+    /**
+     * Record the first use of a prefetched page.
+     */
+    private void usePrefetched(int vpn) {
+	prefetched[vpn] = false;
+	prefetcher.hit();
+    }
+
+    /**
+     * Tell the prefetcher that a page has been accessed for the first time
+     * since it was loaded, and if that continues a stream of accesses, load
+     * the next pages along the stream. Prefetching stops at the first page
+     * that is already resident, so a stream is only extended once the
+     * process reaches the end of what was fetched for it. The caller must
+     * hold <tt>VMKernel.pagingLock</tt>.
+     *
+     * @param	vpn	the virtual page accessed.
+     */
+    private void prefetchAfter(int vpn) {
+	int stride = prefetcher.access(vpn);
+	if (stride == 0)
+	    return;
+
+	int depth = prefetcher.getDepth();
+	int[] vpns = new int[depth];
+	int count = 0;
+
+	// keep the page just accessed from being evicted to make room
+	VMKernel.pinFrame(pageTable[vpn].ppn);
+
+	for (int i=1; i<=depth; i++) {
+	    int next = vpn + i*stride;
+	    if (next < 0 || (next >= numPages && !isMapped(next)) ||
+		pageTable[next].valid)
+		break;
+
+	    // shared text is loaded page by page, and only into free memory
+	    int s = pageSections[next];
+	    CoffSection section = (s == -1) ? null : coff.getSection(s);
+	    if (section != null && section.isReadOnly()) {
+		if (count > 0)
+		    break;
+
+		int ppn = UserKernel.acquireTextPage(executable, s, section,
+						     next-section.getFirstVPN());
+		if (ppn == -1)
+		    break;
+
+		pageTable[next].ppn = ppn;
+		pageTable[next].readOnly = true;
+		markPrefetched(next);
+		prefetcher.prefetched(1);
+		continue;
+	    }
+
+	    int ppn = VMKernel.allocateFrame(this, next);
+	    if (ppn == -1)
+		break;
+
+	    pageTable[next].ppn = ppn;
+	    vpns[count++] = next;
+	}
+
+	if (count > 0) {
+	    Lib.debug(dbgVM, "\tprefetching " + count + " pages after vpn " +
+		      vpn + ", stride " + stride);
+
+	    loadPages(vpns, count);
+	    for (int i=0; i<count; i++)
+		markPrefetched(vpns[i]);
+	    prefetcher.prefetched(count);
+	}
+
+	VMKernel.unpinFrame(pageTable[vpn].ppn);
+    }
+
+    private void markPrefetched(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	entry.used = false;
+	entry.dirty = false;
+	entry.valid = true;
+	prefetched[vpn] = true;
+    }
+
+    /**
+     * Page out a page of this process to free its physical page. The page
+     * only needs writing to the swap file if it is dirty; otherwise the swap
+     * file or the executable already holds its contents, or it is still all
+     * zeros. The dirty pages around it are written in the same cluster,
+     * and stay in memory, clean. A dirty page of a mapped file is written
+     * back to the file instead. The caller must hold
+     * <tt>VMKernel.pagingLock</tt>.
+     *
+     * @param	vpn	the virtual page to page out.
+     * @return	<tt>true</tt> if the page was dirty.
+     */
+    boolean pageOut(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid && !entry.readOnly);
+
+	VMKernel.invalidateTLB(this, vpn);
+	entry.valid = false;
+
+	if (prefetched[vpn]) {
+	    prefetched[vpn] = false;
+	    prefetcher.wasted();
+	}
+
+	if (!entry.dirty)
+	    return false;
+
+	// a page of a mapped file goes back to the file instead
+	if (isMapped(vpn)) {
+	    entry.dirty = false;
+	    writeMappedPage(vpn, entry.ppn);
+	    return true;
+	}
+
+	// grow the cluster forwards first, since faults tend to go forwards
+	int cluster = VMKernel.getSwapCluster();
+	int first = vpn, last = vpn;
+	while (last-first+1 < cluster && last+1 < numPages &&
+	       isCleanable(last+1))
+	    last++;
+	while (last-first+1 < cluster && first > 0 && isCleanable(first-1))
+	    first--;
+
+	int count = last-first+1;
+	int slot = VMKernel.allocateSwap(count);
+	int[] ppns = new int[count];
+
+	// clear the dirty bits first, so writes during the I/O are not lost
+	for (int i=0; i<count; i++) {
+	    TranslationEntry page = pageTable[first+i];
+	    page.dirty = false;
+	    ppns[i] = page.ppn;
+
+	    if (swapSlots[first+i] != -1)
+		VMKernel.freeSwap(swapSlots[first+i]);
+	    swapSlots[first+i] = slot+i;
+	}
+
+	Lib.debug(dbgVM, "\tpaging out vpns " + first + "-" + last +
+		  " to swap slot " + slot);
+
+	Lib.assertTrue(VMKernel.writeSwap(slot, ppns, count),
+		       "swap file write failed");
+	return true;
+    }
+
+    /**
+     * Remove a page of a mapped file from memory, writing it back to the
+     * file if it is dirty.
+     */
+    protected void unmapPage(int vpn) {
+	VMKernel.pagingLock.acquire();
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid) {
+	    VMKernel.invalidateTLB(this, vpn);
+	    entry.valid = false;
+
+	    if (prefetched[vpn]) {
+		prefetched[vpn] = false;
+		prefetcher.wasted();
+	    }
+
+	    if (entry.dirty)
+		writeMappedPage(vpn, entry.ppn);
+	    VMKernel.releaseFrame(entry.ppn);
+	}
+
+	VMKernel.pagingLock.release();
+    }
+
+    /**
+     * Test whether a page can be written to the swap file along with a
+     * neighbouring page that is being paged out: it must be resident,
+     * private, dirty, and not pinned.
+     */
+    private boolean isCleanable(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	if (!entry.valid || entry.readOnly || VMKernel.isPinned(entry.ppn))
+	    return false;
+
+	VMKernel.invalidateTLB(this, vpn);
+	return entry.dirty;
+    }
+
+    /**
+     * Return the page table entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page table entry.
+     */
+    TranslationEntry getEntry(int vpn) {
+	return pageTable[vpn];
+    }
+
+    /**
+     * Merge the used and dirty bits of a TLB entry that is being replaced
+     * into this process's page table.
+     *
+     * @param	tlbEntry	the TLB entry.
+     */
+    void saveTLBBits(TranslationEntry tlbEntry) {
+	if (tlbEntry.vpn < 0 || tlbEntry.vpn >= pageTable.length)
+	    return;
+
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	if (entry.valid && entry.ppn == tlbEntry.ppn) {
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
+    }
 	
+    /** The address space ID that tags this process's TLB entries. */
+    protected int asid = VMKernel.sharedASID;
+    /** The section each virtual page is loaded from, or -1 for none. */
+    protected int[] pageSections;
+    /** The swap file slot holding each virtual page, or -1 for none. */
+    protected int[] swapSlots;
+    /** Whether each page was prefetched and has not been used since. */
+    protected boolean[] prefetched;
+    /** Detects streams of page faults to prefetch along. */
+    protected Prefetcher prefetcher;
+
     private static final int pageSize = Processor.pageSize;
+    private static final byte[] zeroPage = new byte[pageSize];
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
 }
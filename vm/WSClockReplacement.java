@@ -0,0 +1,70 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The WSClock algorithm. Like the clock algorithm, a hand sweeps around
+ * physical memory, but each frame also remembers when its page was last
+ * found to be used. A page is outside the working set if it has not been
+ * used for <tt>WSClock.window</tt> ticks. The hand stops at the first clean
+ * page outside the working set; failing that, a dirty page outside the
+ * working set is evicted, since writing it back is cheaper than evicting a
+ * page that is still being used. If every page is in the working set, the
+ * least recently used page the hand passed is evicted.
+ */
+public class WSClockReplacement extends PageReplacement {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockReplacement() {
+	super();
+
+	window = Config.getInteger("WSClock.window", 20000);
+	Lib.assertTrue(window > 0);
+
+	lastUsed = new long[numPhysPages];
+    }
+
+    public int chooseVictim() {
+	long now = Machine.timer().getTime();
+	int oldDirty = -1, oldest = -1;
+
+	for (int i=0; i<numPhysPages; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPhysPages;
+	    numScanned++;
+
+	    if (!VMKernel.isEvictable(ppn))
+		continue;
+
+	    TranslationEntry entry = VMKernel.getFrameEntry(ppn);
+	    if (entry.used) {
+		entry.used = false;
+		lastUsed[ppn] = now;
+	    }
+	    else if (now - lastUsed[ppn] > window) {
+		if (!entry.dirty)
+		    return ppn;
+		if (oldDirty == -1)
+		    oldDirty = ppn;
+	    }
+
+	    if (oldest == -1 || lastUsed[ppn] < lastUsed[oldest])
+		oldest = ppn;
+	}
+
+	return (oldDirty != -1) ? oldDirty : oldest;
+    }
+
+    public void pageLoaded(int ppn) {
+	lastUsed[ppn] = Machine.timer().getTime();
+    }
+
+    private int hand = 0;
+    private long window;
+    /** When each frame's page was last found to be used. */
+    private long[] lastUsed;
+}